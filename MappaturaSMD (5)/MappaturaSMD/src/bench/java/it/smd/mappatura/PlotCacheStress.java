@@ -0,0 +1,204 @@
+package it.smd.mappatura;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress della tabella della cache plot (PackedPlotTable, lo stato di PlotCacheManager)
+ * fino a 1M plot: ./gradlew plotCacheStress [-Pplots=N]
+ *
+ * - Riempie la tabella con plot sintetici su una griglia (passo 40, due dimensioni, 20k owner)
+ *   e a ogni soglia (1%, 10%, 100%) misura la latenza per operazione di get, contains
+ *   (mancato), put (aggiornamento), byOwner, nearest e within.
+ * - A tabella piena fa girare 3 lettori (get/contains, come il thread client) mentre un
+ *   writer inserisce altri plot (come i worker degli invii) e controlla che ogni lettura
+ *   sia coerente.
+ * - Latenza "piatta": la p50 di get/contains/put alla soglia più grande non deve superare
+ *   FLAT_FACTOR volte quella della più piccola. Se la supera, o una lettura è incoerente,
+ *   esce con codice 1.
+ *
+ * Non usa Minecraft né disco: gira con il solo classpath di main.
+ */
+public final class PlotCacheStress {
+    private static final int DEFAULT_PLOTS = 1_000_000;
+    private static final int PITCH = 40;
+    private static final int OWNERS = 20_000;
+    private static final int SAMPLES = 200_000;
+    private static final int SPATIAL_SAMPLES = 20_000;
+    private static final int CONCURRENT_WRITES = 200_000;
+    private static final int READERS = 3;
+    // margine per cache della CPU e rumore: la crescita O(n) a 100x plot darebbe ~100x
+    private static final double FLAT_FACTOR = 4.0;
+
+    private PlotCacheStress() {}
+
+    public static void main(String[] args) throws Exception {
+        int plots = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PLOTS;
+        int side = (int) Math.ceil(Math.sqrt(plots / 2.0));
+        int[] checkpoints = { Math.max(1, plots / 100), Math.max(1, plots / 10), plots };
+        System.out.printf(Locale.ROOT, "PlotCacheStress: %,d plot (%dx%d per dimensione)%n", plots, side, side);
+
+        PackedPlotTable table = new PackedPlotTable();
+        SplittableRandom rnd = new SplittableRandom(42L);
+        List<double[]> baseline = new ArrayList<>();
+        boolean ok = true;
+        int filled = 0;
+        for (int checkpoint : checkpoints) {
+            long t0 = System.nanoTime();
+            for (; filled < checkpoint; filled++) table.put(plot(filled, side, 0L));
+            long fillMs = (System.nanoTime() - t0) / 1_000_000L;
+            System.out.printf(Locale.ROOT, "%n== %,d plot (riempimento +%d ms)%n", table.size(), fillMs);
+
+            double[] p50 = new double[3];
+            p50[0] = report("get", measure(SAMPLES, i -> {
+                String id = plotId(rnd.nextInt(checkpoint), side);
+                if (table.get(id) == null) throw new IllegalStateException("plot mancante: " + id);
+            }));
+            p50[1] = report("contains (mancato)", measure(SAMPLES, i -> {
+                if (table.contains("x" + rnd.nextInt(1 << 30))) throw new IllegalStateException("falso positivo");
+            }));
+            p50[2] = report("put (aggiornamento)", measure(SAMPLES, i -> table.put(plot(rnd.nextInt(checkpoint), side, i + 1L))));
+            report("byOwner", measure(SPATIAL_SAMPLES, i -> table.byOwner(owner(rnd.nextInt(OWNERS)))));
+            int extent = (int) Math.min((long) side * PITCH, (long) Math.sqrt(checkpoint / 2.0 + 1) * PITCH);
+            report("nearest k=8", measure(SPATIAL_SAMPLES, i ->
+                    table.nearest(rnd.nextInt(extent), rnd.nextInt(extent), "overworld", 8, 0, null)));
+            report("within r=128", measure(SPATIAL_SAMPLES, i ->
+                    table.within(rnd.nextInt(extent), rnd.nextInt(extent), "overworld", 128, null)));
+            baseline.add(p50);
+        }
+
+        double[] first = baseline.get(0);
+        double[] last = baseline.get(baseline.size() - 1);
+        String[] names = { "get", "contains", "put" };
+        System.out.printf(Locale.ROOT, "%n== Piattezza (p50 a %,d / p50 a %,d, limite %.1fx)%n", plots, checkpoints[0], FLAT_FACTOR);
+        for (int i = 0; i < names.length; i++) {
+            double ratio = last[i] / Math.max(1.0, first[i]);
+            boolean flat = ratio <= FLAT_FACTOR;
+            ok &= flat;
+            System.out.printf(Locale.ROOT, "%-10s %.2fx %s%n", names[i], ratio, flat ? "OK" : "NON PIATTA");
+        }
+
+        ok &= concurrent(table, plots, side);
+        System.out.println(ok ? "\nRISULTATO: OK" : "\nRISULTATO: FALLITO");
+        if (!ok) System.exit(1);
+    }
+
+    /** Lettori e writer insieme: ogni get deve restituire il plot chiesto, con i suoi dati. */
+    private static boolean concurrent(PackedPlotTable table, int plots, int side) throws InterruptedException {
+        System.out.printf(Locale.ROOT, "%n== Concorrenza: %d lettori, 1 writer (+%,d plot)%n", READERS, CONCURRENT_WRITES);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        AtomicLong errors = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        long[][] latencies = new long[READERS][];
+        for (int t = 0; t < READERS; t++) {
+            int reader = t;
+            Thread thread = new Thread(() -> {
+                SplittableRandom rnd = new SplittableRandom(100L + reader);
+                long[] samples = new long[SAMPLES];
+                int n = 0;
+                awaitQuietly(start);
+                while (writing.get()) {
+                    int idx = rnd.nextInt(plots);
+                    String id = plotId(idx, side);
+                    long t0 = System.nanoTime();
+                    PlotCacheManager.Entry e = table.get(id);
+                    long dt = System.nanoTime() - t0;
+                    if (n < samples.length) samples[n++] = dt;
+                    if (e == null || !id.equals(e.plotId) || e.coordX != coordX(idx, side) || !owner(idx % OWNERS).equals(e.owner)) {
+                        errors.incrementAndGet();
+                    }
+                    reads.incrementAndGet();
+                }
+                latencies[reader] = Arrays.copyOf(samples, n);
+            }, "SMD-Stress-Reader-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+        long t0 = System.nanoTime();
+        start.countDown();
+        for (int i = 0; i < CONCURRENT_WRITES; i++) table.put(plot(plots + i, side, 0L));
+        long writeMs = (System.nanoTime() - t0) / 1_000_000L;
+        writing.set(false);
+        for (Thread thread : threads) thread.join();
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).toArray();
+        if (all.length > 0) report("get (con writer)", all);
+        System.out.printf(Locale.ROOT, "scritture: %,d in %d ms, letture: %,d, incoerenti: %d%n",
+                CONCURRENT_WRITES, writeMs, reads.get(), errors.get());
+        boolean consistent = errors.get() == 0 && table.size() == plots + CONCURRENT_WRITES;
+        if (!consistent) System.out.println("ERRORE: letture incoerenti o plot persi (size " + table.size() + ")");
+        return consistent;
+    }
+
+    private static PlotCacheManager.Entry plot(int idx, int side, long fingerprint) {
+        PlotCacheManager.Entry e = new PlotCacheManager.Entry(owner(idx % OWNERS), plotId(idx, side), coordX(idx, side), coordZ(idx, side));
+        e.dimension = (idx / (side * side)) % 2 == 0 ? "overworld" : "the_nether";
+        e.firstSeenAtMs = 1_700_000_000_000L + idx;
+        e.fingerprint = fingerprint;
+        return e;
+    }
+
+    // gli indici oltre due dimensioni piene continuano su righe nuove: id sempre distinti
+    private static String plotId(int idx, int side) {
+        int cell = idx % (side * side);
+        int layer = idx / (side * side);
+        return (cell % side) + ";" + (cell / side + layer * side);
+    }
+
+    private static int coordX(int idx, int side) {
+        return (idx % (side * side)) % side * PITCH;
+    }
+
+    private static int coordZ(int idx, int side) {
+        return (idx % (side * side)) / side * PITCH;
+    }
+
+    private static String owner(int i) {
+        return "Owner" + i;
+    }
+
+    private interface Op {
+        void run(int i);
+    }
+
+    private static long[] measure(int samples, Op op) {
+        // riscaldamento del JIT sullo stesso percorso
+        for (int i = 0; i < Math.min(samples, 20_000); i++) op.run(i);
+        long[] out = new long[samples];
+        for (int i = 0; i < samples; i++) {
+            long t0 = System.nanoTime();
+            op.run(i);
+            out[i] = System.nanoTime() - t0;
+        }
+        return out;
+    }
+
+    /** Stampa p50/p99/p99.9/max in microsecondi e restituisce la p50 in nanosecondi. */
+    private static double report(String name, long[] ns) {
+        long[] sorted = ns.clone();
+        Arrays.sort(sorted);
+        System.out.printf(Locale.ROOT, "%-22s p50 %8.2f us  p99 %8.2f us  p99.9 %8.2f us  max %9.2f us%n", name,
+                pct(sorted, 0.50) / 1e3, pct(sorted, 0.99) / 1e3, pct(sorted, 0.999) / 1e3, sorted[sorted.length - 1] / 1e3);
+        return pct(sorted, 0.50);
+    }
+
+    private static double pct(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))];
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package it.smd.mappatura;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Limite adattivo (AIMD) delle richieste submit in volo.
+ *
+ * - Aumento additivo: +1/limite per ogni risposta OK finché la latenza p90 è stabile
+ *   (circa +1 per "giro" completo di richieste).
+ * - Diminuzione moltiplicativa: x0.5 su 429/5xx/errore di rete, x0.75 su picchi di latenza
+ *   (p90 recente oltre il doppio della base). Al massimo un taglio per COOLDOWN_MS.
+ *
+ * Il tetto massimo è letto dal config (submitMaxInFlight) a ogni acquire.
+ */
+public final class AdaptiveConcurrencyLimiter {
+
+    public enum Outcome { OK, OVERLOAD, IGNORE }
+
+    private static final int HARD_CAP = 64;
+    private static final double MIN_LIMIT = 1.0;
+    private static final double INITIAL_LIMIT = 2.0;
+    private static final double OVERLOAD_FACTOR = 0.5;
+    private static final double LATENCY_FACTOR = 0.75;
+    private static final double LATENCY_SPIKE_RATIO = 2.0;
+    private static final double BASELINE_ALPHA = 0.05;
+    private static final long COOLDOWN_MS = 2_000L;
+    private static final int SAMPLE_WINDOW = 32;
+    private static final int MIN_SAMPLES = 8;
+
+    private double limit = INITIAL_LIMIT;
+    private int inFlight = 0;
+
+    private final long[] samples = new long[SAMPLE_WINDOW];
+    private int sampleCount = 0;
+    private int sampleNext = 0;
+    private double baselineP90Ms = 0.0;
+
+    private long lastDecreaseAtMs = 0L;
+    private String lastDecreaseReason = null;
+
+    /** Attende uno slot libero sotto il limite corrente. */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= currentLimit()) {
+            wait(250L);
+        }
+        inFlight++;
+    }
+
+    /** Rilascia lo slot e aggiorna il limite in base all'esito e alla latenza. */
+    public synchronized void release(long latencyMs, Outcome outcome) {
+        if (inFlight > 0) inFlight--;
+        long now = System.currentTimeMillis();
+
+        if (outcome == Outcome.OVERLOAD) {
+            decrease(now, OVERLOAD_FACTOR, "429/5xx");
+        } else if (outcome == Outcome.OK) {
+            addSample(latencyMs);
+            double p90 = currentP90();
+            if (p90 > 0 && baselineP90Ms > 0 && p90 > baselineP90Ms * LATENCY_SPIKE_RATIO) {
+                decrease(now, LATENCY_FACTOR, "latenza p90 " + Math.round(p90) + "ms");
+                // la base segue lentamente un backend stabilmente più lento (niente tagli infiniti)
+                baselineP90Ms = Math.max(baselineP90Ms, p90 / LATENCY_SPIKE_RATIO);
+            } else {
+                if (p90 > 0) {
+                    baselineP90Ms = baselineP90Ms <= 0 ? p90 : baselineP90Ms + BASELINE_ALPHA * (p90 - baselineP90Ms);
+                }
+                limit = Math.min(maxLimit(), limit + 1.0 / Math.max(1.0, limit));
+            }
+        }
+        notifyAll();
+    }
+
+    /** Attende che non ci siano richieste in volo (max timeoutMs). Ritorna true se idle. */
+    public synchronized boolean awaitIdle(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + Math.max(0L, timeoutMs);
+        while (inFlight > 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) return false;
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int currentLimit() {
+        return (int) Math.max(MIN_LIMIT, Math.min(maxLimit(), Math.floor(limit)));
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /** Riga leggibile per /mappatura debug. */
+    public synchronized String describe() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("limite ").append(currentLimit())
+          .append(" (").append(String.format(Locale.ROOT, "%.2f", limit))
+          .append(", max ").append(maxLimit()).append(")")
+          .append(", in volo ").append(inFlight);
+        double p90 = currentP90();
+        if (p90 > 0) {
+            sb.append(", p90 ").append(Math.round(p90)).append("ms")
+              .append(" (base ").append(Math.round(baselineP90Ms)).append("ms)");
+        }
+        if (lastDecreaseReason != null) {
+            long agoS = (System.currentTimeMillis() - lastDecreaseAtMs) / 1000;
+            sb.append(", ultimo taglio: ").append(lastDecreaseReason).append(" ").append(agoS).append("s fa");
+        }
+        return sb.toString();
+    }
+
+    private void decrease(long now, double factor, String reason) {
+        if (now - lastDecreaseAtMs < COOLDOWN_MS) return;
+        limit = Math.max(MIN_LIMIT, limit * factor);
+        lastDecreaseAtMs = now;
+        lastDecreaseReason = reason;
+        // dopo un taglio la finestra riparte: la p90 vecchia non deve causarne altri
+        sampleCount = 0;
+        sampleNext = 0;
+    }
+
+    private void addSample(long latencyMs) {
+        if (latencyMs < 0) return;
+        samples[sampleNext] = latencyMs;
+        sampleNext = (sampleNext + 1) % SAMPLE_WINDOW;
+        if (sampleCount < SAMPLE_WINDOW) sampleCount++;
+    }
+
+    private double currentP90() {
+        if (sampleCount < MIN_SAMPLES) return 0.0;
+        long[] copy = Arrays.copyOf(samples, sampleCount);
+        Arrays.sort(copy);
+        int idx = (int) Math.ceil(0.9 * copy.length) - 1;
+        return copy[Math.max(0, Math.min(copy.length - 1, idx))];
+    }
+
+    private static int maxLimit() {
+        AppConfig cfg = ConfigManager.get();
+        int max = cfg != null ? cfg.submitMaxInFlight : (int) INITIAL_LIMIT;
+        return Math.max(1, Math.min(HARD_CAP, max));
+    }
+}
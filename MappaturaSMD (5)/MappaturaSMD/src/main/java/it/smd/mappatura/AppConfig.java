@@ -17,6 +17,29 @@ public class AppConfig {
 
     public String dimensionDefault;
 
+    // Tetto delle richieste submitPlot contemporanee (il limite effettivo si adatta sotto questo valore)
+    public int submitMaxInFlight;
+
+    // Comprime con gzip i body di submitPlotBatch (solo se il backend accetta Content-Encoding: gzip)
+    public boolean submitGzipBatch;
+
+    // Attesa massima degli invii in volo quando esci dal mondo o chiudi il gioco
+    public long submitDrainTimeoutMs;
+
+    // HTTP/2 verso il backend: gli invii paralleli condividono una sola connessione (fallback automatico a 1.1)
+    public boolean httpUseHttp2;
+
+    // Cattura offline: i plot letti restano in locale fino a /mappatura sync (niente invii durante la scansione)
+    public boolean offlineCapture;
+
+    // Lato di un plot in blocchi: entrando in un chunk a meno di metà lato da un plot già letto
+    // non si manda /plot info (0 = valore predefinito)
+    public int plotFootprint;
+
+    // Ri-scansione: filtro plotFootprint disattivato e la griglia calibrata salta solo le strade,
+    // i plot già noti vengono riletti per accorgersi dei cambi
+    public boolean rescanKnownPlots;
+
     // Stato accesso (salvato, così se riapri GUI vedi subito)
     public boolean authorized;
     public String lastAuthMessage;
@@ -31,6 +54,13 @@ public class AppConfig {
         c.commandCooldownMs = 600;
         c.parserTimeoutMs = 5000;
         c.dimensionDefault = "overworld";
+        c.submitMaxInFlight = 16;
+        c.submitGzipBatch = false;
+        c.submitDrainTimeoutMs = 5000;
+        c.httpUseHttp2 = false;
+        c.offlineCapture = false;
+        c.plotFootprint = 32;
+        c.rescanKnownPlots = false;
         c.authorized = false;
         c.lastAuthMessage = "Non verificato";
         return c;
@@ -0,0 +1,136 @@
+package it.smd.mappatura;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Esecutore condiviso per TUTTE le chiamate HTTP asincrone verso il backend
+ * (checkAccess, searchPlot, whitelistRequest, submitAsync).
+ *
+ * - Pool piccolo e limitato: niente più un thread nuovo per ogni chiamata.
+ * - Coda limitata: oltre QUEUE_LIMIT la chiamata viene rifiutata subito.
+ * - Metriche per nome chiamata (visibili in /mappatura debug).
+ * - Ogni chiamata ritorna un Future cancellabile; cancelPending() svuota la coda.
+ *
+ * Niente virtual thread, anche se il progetto compila per Java 21: il limite di MAX_THREADS
+ * chiamate contemporanee verso il backend e la coda che rifiuta sono voluti, e con un
+ * virtual thread per chiamata andrebbero ricostruiti a mano (semaforo + contatore).
+ */
+public final class BackendExecutor {
+
+    private static final int MAX_THREADS = 4;
+    private static final int QUEUE_LIMIT = 64;
+    private static final long IDLE_KEEP_ALIVE_MS = 30_000L;
+
+    private static final AtomicInteger THREAD_SEQ = new AtomicInteger();
+    private static final ThreadPoolExecutor POOL = createPool();
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    private BackendExecutor() {}
+
+    /** Contatori per una singola chiamata (es. "checkAccess"). */
+    public static final class Stats {
+        public final AtomicLong submitted = new AtomicLong();
+        public final AtomicLong completed = new AtomicLong();
+        public final AtomicLong failed = new AtomicLong();
+        public final AtomicLong rejected = new AtomicLong();
+        public final AtomicLong cancelled = new AtomicLong();
+        public final AtomicInteger active = new AtomicInteger();
+    }
+
+    /**
+     * Accoda un task. Ritorna il Future (cancellabile con interrupt),
+     * oppure lancia RejectedExecutionException se la coda è piena.
+     */
+    public static Future<?> submit(String name, Runnable task) {
+        String key = (name == null || name.isBlank()) ? "http" : name;
+        Stats stats = STATS.computeIfAbsent(key, k -> new Stats());
+        try {
+            Future<?> future = POOL.submit(() -> {
+                stats.active.incrementAndGet();
+                try {
+                    task.run();
+                    if (Thread.currentThread().isInterrupted()) {
+                        stats.cancelled.incrementAndGet();
+                    } else {
+                        stats.completed.incrementAndGet();
+                    }
+                } catch (RuntimeException e) {
+                    stats.failed.incrementAndGet();
+                    throw e;
+                } finally {
+                    stats.active.decrementAndGet();
+                }
+            });
+            stats.submitted.incrementAndGet();
+            return future;
+        } catch (RejectedExecutionException e) {
+            stats.rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /** Scarta i task ancora in coda (quelli già in esecuzione continuano). */
+    public static int cancelPending() {
+        List<Runnable> drained = new ArrayList<>();
+        POOL.getQueue().drainTo(drained);
+        for (Runnable r : drained) {
+            if (r instanceof Future<?> f) f.cancel(false);
+        }
+        return drained.size();
+    }
+
+    public static int getActiveCount() {
+        return POOL.getActiveCount();
+    }
+
+    public static int getQueuedCount() {
+        return POOL.getQueue().size();
+    }
+
+    /** Righe leggibili per /mappatura debug. */
+    public static List<String> describe() {
+        List<String> out = new ArrayList<>();
+        out.add("pool " + POOL.getPoolSize() + "/" + MAX_THREADS
+                + ", attivi " + POOL.getActiveCount()
+                + ", in coda " + POOL.getQueue().size() + "/" + QUEUE_LIMIT);
+        STATS.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(e -> {
+                    Stats s = e.getValue();
+                    out.add(e.getKey() + ": ok " + s.completed.get()
+                            + ", errori " + s.failed.get()
+                            + ", rifiutate " + s.rejected.get()
+                            + ", annullate " + s.cancelled.get()
+                            + ", attive " + s.active.get());
+                });
+        return out;
+    }
+
+    private static ThreadPoolExecutor createPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+                MAX_THREADS,
+                MAX_THREADS,
+                IDLE_KEEP_ALIVE_MS,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_LIMIT),
+                r -> {
+                    Thread t = new Thread(r, "SMD-HTTP-" + THREAD_SEQ.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+}
@@ -0,0 +1,175 @@
+package it.smd.mappatura;
+
+import java.net.http.HttpResponse;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket unico (per processo) davanti a TUTTE le chiamate al backend:
+ * checkAccess, searchPlot, whitelistRequest, submitPlot/submitPlotBatch.
+ *
+ * - INTERACTIVE (comandi del giocatore, auth): prenota il token anche in anticipo,
+ *   quindi passa sempre per primo.
+ * - BACKGROUND (invii coda): prende un token solo se ne resta almeno uno di riserva
+ *   per le chiamate interattive, altrimenti aspetta e riprova.
+ * - Retry-After (429/503) e hint X-RateLimit-Remaining/Reset bloccano tutte le chiamate
+ *   fino alla scadenza indicata dal server.
+ */
+public final class BackendRateLimiter {
+
+    public enum Priority { INTERACTIVE, BACKGROUND }
+
+    private static final double REFILL_PER_SECOND = 5.0;
+    private static final double CAPACITY = 10.0;
+    private static final double INTERACTIVE_RESERVE = 1.0;
+    private static final long MAX_SERVER_PAUSE_MS = 5 * 60_000L;
+    // 429 senza Retry-After: pausa breve comune a tutti
+    private static final long DEFAULT_429_PAUSE_MS = 1_000L;
+
+    private static double tokens = CAPACITY;
+    private static long lastRefillAtMs = System.currentTimeMillis();
+    private static long blockedUntilMs = 0L;
+    private static String lastServerHint = null;
+
+    private BackendRateLimiter() {}
+
+    /** Variante bloccante (thread BackendExecutor). */
+    public static void acquire(Priority priority) throws InterruptedException {
+        long waitMs = tryReserve(priority);
+        while (waitMs > 0) {
+            Thread.sleep(waitMs);
+            if (priority == Priority.INTERACTIVE) return;
+            waitMs = tryReserve(priority);
+        }
+    }
+
+    /** Variante asincrona: il future completa quando il token è stato concesso. */
+    public static CompletableFuture<Void> acquireAsync(Priority priority) {
+        long waitMs = tryReserve(priority);
+        if (waitMs <= 0) return CompletableFuture.completedFuture(null);
+        CompletableFuture<Void> delayed = CompletableFuture.runAsync(() -> {},
+                CompletableFuture.delayedExecutor(waitMs, TimeUnit.MILLISECONDS));
+        if (priority == Priority.INTERACTIVE) return delayed;
+        return delayed.thenCompose(v -> acquireAsync(priority));
+    }
+
+    /**
+     * Prova a prendere un token. Ritorna 0 se concesso subito, altrimenti i ms da attendere.
+     * INTERACTIVE prenota comunque (il bucket può andare in negativo): dopo l'attesa
+     * ritornata il token è già suo. BACKGROUND invece deve riprovare dopo l'attesa.
+     */
+    private static synchronized long tryReserve(Priority priority) {
+        long now = System.currentTimeMillis();
+        refill(now);
+        long gateMs = Math.max(0L, blockedUntilMs - now);
+
+        if (priority == Priority.INTERACTIVE) {
+            double deficit = 1.0 - tokens;
+            tokens -= 1.0;
+            long tokenWaitMs = deficit > 0 ? (long) Math.ceil(deficit * 1000.0 / REFILL_PER_SECOND) : 0L;
+            return Math.max(gateMs, tokenWaitMs);
+        }
+
+        double needed = 1.0 + INTERACTIVE_RESERVE;
+        if (gateMs == 0 && tokens >= needed) {
+            tokens -= 1.0;
+            return 0L;
+        }
+        double deficit = needed - tokens;
+        long tokenWaitMs = deficit > 0 ? (long) Math.ceil(deficit * 1000.0 / REFILL_PER_SECOND) : 0L;
+        return Math.max(1L, Math.max(gateMs, tokenWaitMs));
+    }
+
+    /** Aggiorna lo stato dai codici/header della risposta (Retry-After, X-RateLimit-*). */
+    public static void onResponse(HttpResponse<?> resp) {
+        if (resp == null) return;
+        int status = resp.statusCode();
+        long now = System.currentTimeMillis();
+
+        long pauseMs = 0L;
+        String hint = null;
+
+        Optional<String> retryAfter = resp.headers().firstValue("Retry-After");
+        if ((status == 429 || status == 503) && retryAfter.isPresent()) {
+            pauseMs = parseRetryAfterMs(retryAfter.get(), now);
+            hint = "Retry-After " + retryAfter.get();
+        } else if (status == 429) {
+            pauseMs = DEFAULT_429_PAUSE_MS;
+            hint = "HTTP 429";
+        }
+
+        Optional<String> remaining = firstHeader(resp, "X-RateLimit-Remaining", "RateLimit-Remaining");
+        Optional<String> reset = firstHeader(resp, "X-RateLimit-Reset", "RateLimit-Reset");
+        if (remaining.isPresent() && reset.isPresent()) {
+            long left = parseLong(remaining.get(), -1L);
+            long resetS = parseLong(reset.get(), -1L);
+            if (left == 0 && resetS > 0) {
+                // alcuni server mandano l'epoch in secondi, altri i secondi mancanti
+                long resetMs = resetS > 1_000_000_000L ? resetS * 1000L - now : resetS * 1000L;
+                if (resetMs > pauseMs) {
+                    pauseMs = resetMs;
+                    hint = "RateLimit-Remaining 0, reset " + reset.get();
+                }
+            }
+        }
+
+        if (pauseMs <= 0) return;
+        pauseMs = Math.min(MAX_SERVER_PAUSE_MS, pauseMs);
+        synchronized (BackendRateLimiter.class) {
+            blockedUntilMs = Math.max(blockedUntilMs, now + pauseMs);
+            tokens = Math.min(tokens, 0.0);
+            lastServerHint = hint;
+        }
+        System.out.println("[SMD][HTTP] Rate limit dal server (" + hint + "): pausa " + pauseMs + "ms");
+    }
+
+    /** Riga leggibile per /mappatura debug. */
+    public static synchronized String describe() {
+        long now = System.currentTimeMillis();
+        refill(now);
+        String out = "token " + String.format(Locale.ROOT, "%.1f", tokens) + "/" + (int) CAPACITY
+                + " (" + (int) REFILL_PER_SECOND + "/s)";
+        if (blockedUntilMs > now) {
+            out += ", in pausa per " + ((blockedUntilMs - now) / 1000) + "s";
+        }
+        if (lastServerHint != null) {
+            out += ", ultimo hint: " + lastServerHint;
+        }
+        return out;
+    }
+
+    private static void refill(long now) {
+        long elapsed = now - lastRefillAtMs;
+        if (elapsed <= 0) return;
+        tokens = Math.min(CAPACITY, tokens + elapsed * REFILL_PER_SECOND / 1000.0);
+        lastRefillAtMs = now;
+    }
+
+    private static long parseRetryAfterMs(String value, long now) {
+        String v = value.trim();
+        long seconds = parseLong(v, -1L);
+        if (seconds >= 0) return seconds * 1000L;
+        try {
+            ZonedDateTime at = ZonedDateTime.parse(v, DateTimeFormatter.RFC_1123_DATE_TIME);
+            return Math.max(0L, at.toInstant().toEpochMilli() - now);
+        } catch (Exception ignored) {
+            return DEFAULT_429_PAUSE_MS;
+        }
+    }
+
+    private static Optional<String> firstHeader(HttpResponse<?> resp, String... names) {
+        for (String name : names) {
+            Optional<String> v = resp.headers().firstValue(name);
+            if (v.isPresent()) return v;
+        }
+        return Optional.empty();
+    }
+
+    private static long parseLong(String v, long fallback) {
+        try { return Long.parseLong(v.trim()); } catch (Exception e) { return fallback; }
+    }
+}
@@ -0,0 +1,108 @@
+package it.smd.mappatura;
+
+/**
+ * Circuit breaker per l'endpoint backend.
+ *
+ * - CLOSED: richieste normali; dopo failureThreshold errori consecutivi (rete/5xx) -> OPEN.
+ * - OPEN: nessuna richiesta; allo scadere del timeout un solo chiamante avvia la probe -> HALF_OPEN.
+ * - HALF_OPEN: probe in corso; esito OK -> CLOSED, errore -> OPEN con timeout raddoppiato.
+ */
+public final class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long baseOpenMs;
+    private final long maxOpenMs;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openUntilMs = 0L;
+    private long currentOpenMs;
+    private long openedAtMs = 0L;
+    private String lastFailure = null;
+
+    public CircuitBreaker(String name, int failureThreshold, long baseOpenMs, long maxOpenMs) {
+        this.name = name;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.baseOpenMs = Math.max(100L, baseOpenMs);
+        this.maxOpenMs = Math.max(this.baseOpenMs, maxOpenMs);
+        this.currentOpenMs = this.baseOpenMs;
+    }
+
+    public synchronized boolean allowRequest() {
+        return state == State.CLOSED;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /** Ritorna true (una sola volta per finestra) se il chiamante deve lanciare la probe. */
+    public synchronized boolean tryStartProbe() {
+        if (state != State.OPEN) return false;
+        if (System.currentTimeMillis() < openUntilMs) return false;
+        state = State.HALF_OPEN;
+        return true;
+    }
+
+    public synchronized void onProbeResult(boolean ok, String detail) {
+        if (state != State.HALF_OPEN) return;
+        if (ok) {
+            close();
+            return;
+        }
+        lastFailure = detail;
+        currentOpenMs = Math.min(maxOpenMs, currentOpenMs * 2);
+        open();
+    }
+
+    public synchronized void recordSuccess() {
+        consecutiveFailures = 0;
+    }
+
+    public synchronized void recordFailure(String detail) {
+        consecutiveFailures++;
+        lastFailure = detail;
+        if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            currentOpenMs = baseOpenMs;
+            open();
+        }
+    }
+
+    /** Riga leggibile per /mappatura debug. */
+    public synchronized String describe() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder(state.name());
+        if (state == State.OPEN) {
+            sb.append(" da ").append((now - openedAtMs) / 1000).append("s")
+              .append(", probe tra ").append(Math.max(0L, openUntilMs - now) / 1000).append("s");
+        } else if (state == State.CLOSED && consecutiveFailures > 0) {
+            sb.append(", errori consecutivi ").append(consecutiveFailures).append("/").append(failureThreshold);
+        }
+        if (lastFailure != null && state != State.CLOSED) {
+            sb.append(" (").append(lastFailure).append(")");
+        }
+        return sb.toString();
+    }
+
+    private void open() {
+        long now = System.currentTimeMillis();
+        if (state == State.CLOSED) openedAtMs = now;
+        state = State.OPEN;
+        openUntilMs = now + currentOpenMs;
+        System.out.println("[SMD][HTTP] Circuito " + name + " APERTO per " + currentOpenMs + "ms"
+                + (lastFailure != null ? " (" + lastFailure + ")" : ""));
+    }
+
+    private void close() {
+        boolean wasOpen = state != State.CLOSED;
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        currentOpenMs = baseOpenMs;
+        if (wasOpen) {
+            System.out.println("[SMD][HTTP] Circuito " + name + " CHIUSO (backend di nuovo raggiungibile)");
+        }
+    }
+}
@@ -5,52 +5,136 @@ import com.google.gson.GsonBuilder;
 import net.fabricmc.loader.api.FabricLoader;
 
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class ConfigManager {
     private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
     private static final String FILE_NAME = "mappaturasmd.json";
-    private static AppConfig config;
+    // più save() ravvicinati (click nel pannello, refresh auth) diventano una sola scrittura
+    private static final long SAVE_COALESCE_MS = 500L;
+    private static volatile AppConfig config;
+    private static volatile CompletableFuture<AppConfig> loading;
+
+    /** Lettura del config sul thread SMD-IO: onInitializeClient non tocca il disco. */
+    public static void initAsync() {
+        loading = DiskExecutor.supply("config", ConfigManager::load)
+                .exceptionally(e -> AppConfig.defaults())
+                .thenApply(loaded -> {
+                    config = loaded;
+                    return loaded;
+                });
+    }
 
     public static void init() {
+        config = load();
+    }
+
+    private static AppConfig load() {
         Path cfgDir = FabricLoader.getInstance().getConfigDir();
         Path file = cfgDir.resolve(FILE_NAME);
 
         if (!Files.exists(file)) {
-            config = AppConfig.defaults();
-            save();
-            return;
+            AppConfig defaults = AppConfig.defaults();
+            write(defaults);
+            return defaults;
         }
+        AppConfig loaded;
         try {
             String s = Files.readString(file, StandardCharsets.UTF_8);
-            config = GSON.fromJson(s, AppConfig.class);
-            if (config == null) config = AppConfig.defaults();
+            loaded = GSON.fromJson(s, AppConfig.class);
+            if (loaded == null) loaded = AppConfig.defaults();
             // migrazioni/sicurezze
-            if (config.endpointUrl == null || config.endpointUrl.isBlank()) config.endpointUrl = AppConfig.defaults().endpointUrl;
-            config.endpointUrl = SubmitPlotClient.normalizeUrl(config.endpointUrl);
-            if (config.plotInfoCommand == null || config.plotInfoCommand.isBlank()) config.plotInfoCommand = AppConfig.defaults().plotInfoCommand;
-            if (config.tickInterval <= 0) config.tickInterval = AppConfig.defaults().tickInterval;
-            if (config.commandCooldownMs < 0) config.commandCooldownMs = AppConfig.defaults().commandCooldownMs;
-            if (config.parserTimeoutMs < 1000) config.parserTimeoutMs = AppConfig.defaults().parserTimeoutMs;
-            if (config.dimensionDefault == null || config.dimensionDefault.isBlank()) config.dimensionDefault = AppConfig.defaults().dimensionDefault;
+            if (loaded.endpointUrl == null || loaded.endpointUrl.isBlank()) loaded.endpointUrl = AppConfig.defaults().endpointUrl;
+            loaded.endpointUrl = SubmitPlotClient.normalizeUrl(loaded.endpointUrl);
+            if (loaded.plotInfoCommand == null || loaded.plotInfoCommand.isBlank()) loaded.plotInfoCommand = AppConfig.defaults().plotInfoCommand;
+            if (loaded.tickInterval <= 0) loaded.tickInterval = AppConfig.defaults().tickInterval;
+            if (loaded.commandCooldownMs < 0) loaded.commandCooldownMs = AppConfig.defaults().commandCooldownMs;
+            if (loaded.parserTimeoutMs < 1000) loaded.parserTimeoutMs = AppConfig.defaults().parserTimeoutMs;
+            if (loaded.dimensionDefault == null || loaded.dimensionDefault.isBlank()) loaded.dimensionDefault = AppConfig.defaults().dimensionDefault;
+            if (loaded.submitMaxInFlight <= 0) loaded.submitMaxInFlight = AppConfig.defaults().submitMaxInFlight;
+            if (loaded.submitDrainTimeoutMs <= 0) loaded.submitDrainTimeoutMs = AppConfig.defaults().submitDrainTimeoutMs;
+            // plotFootprint negativo era il vecchio interruttore della ri-scansione
+            if (loaded.plotFootprint < 0) loaded.rescanKnownPlots = true;
+            if (loaded.plotFootprint <= 0) loaded.plotFootprint = AppConfig.defaults().plotFootprint;
         } catch (Exception e) {
-            config = AppConfig.defaults();
-            save();
+            loaded = AppConfig.defaults();
+            write(loaded);
         }
+        return loaded;
     }
 
+    /**
+     * Config corrente. Finché il caricamento in background non è finito ritorna una copia nuova
+     * dei valori predefiniti (codice sessione vuoto: niente invii) invece di bloccare il thread
+     * del client: è solo da leggere, le modifiche passano da update().
+     * Senza initAsync legge in modo sincrono.
+     */
     public static AppConfig get() {
-        if (config == null) init();
-        return config;
+        AppConfig c = config;
+        if (c != null) return c;
+        if (loading != null) return AppConfig.defaults();
+        synchronized (ConfigManager.class) {
+            if (config == null) init();
+            return config;
+        }
+    }
+
+    /** Completa con il config caricato da disco (subito se è già pronto). */
+    public static CompletableFuture<AppConfig> whenLoaded() {
+        AppConfig c = config;
+        if (c != null) return CompletableFuture.completedFuture(c);
+        CompletableFuture<AppConfig> pending = loading;
+        return pending != null ? pending : CompletableFuture.completedFuture(get());
     }
 
+    /**
+     * Modifica il config caricato e lo salva. Se il caricamento non è ancora finito la modifica
+     * parte appena finisce (sul thread SMD-IO), così non va persa su una copia dei predefiniti.
+     * Il future completa con il config modificato.
+     */
+    public static CompletableFuture<AppConfig> update(Consumer<AppConfig> change) {
+        return whenLoaded().thenApply(cfg -> {
+            change.accept(cfg);
+            save();
+            return cfg;
+        });
+    }
+
+    /**
+     * Salvataggio asincrono e coalescente: non blocca il chiamante. Prima della fine del
+     * caricamento si aspetta quello, così i predefiniti non sovrascrivono il file.
+     */
     public static void save() {
+        if (config == null && loading != null) {
+            loading.thenRun(ConfigManager::save);
+            return;
+        }
+        DiskExecutor.coalesce("config", SAVE_COALESCE_MS, () -> write(get()));
+    }
+
+    /** Scrive subito le modifiche in attesa (uscita dal gioco). */
+    public static void flush(long timeoutMs) {
+        DiskExecutor.flushCoalesced(timeoutMs);
+    }
+
+    /** Scrittura su file temporaneo + rename: un crash a metà non lascia un config troncato. */
+    private static void write(AppConfig cfg) {
         try {
             Path cfgDir = FabricLoader.getInstance().getConfigDir();
             Path file = cfgDir.resolve(FILE_NAME);
+            Path tmp = cfgDir.resolve(FILE_NAME + ".tmp");
             Files.createDirectories(cfgDir);
-            Files.writeString(file, GSON.toJson(get()), StandardCharsets.UTF_8);
+            Files.writeString(tmp, GSON.toJson(cfg), StandardCharsets.UTF_8);
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
         } catch (Exception ignored) {}
     }
 }
@@ -0,0 +1,170 @@
+package it.smd.mappatura;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Invii falliti definitivamente (errore non ritentabile o tentativi esauriti).
+ *
+ * - Escono dalla coda pendente: il WAL resta piccolo e lo stesso plot può essere rimesso in coda.
+ * - Al massimo MAX_ENTRIES voci: oltre, si scartano le più vecchie.
+ * - Salvati in mappaturasmd_falliti.json (scrittura coalescente sul thread SMD-IO).
+ * - /mappatura falliti lista|riprova|svuota.
+ */
+public final class DeadLetterStore {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final String FILE_NAME = "mappaturasmd_falliti.json";
+    private static final int MAX_ENTRIES = 200;
+    private static final long SAVE_COALESCE_MS = 1_000L;
+
+    /** key = chiave submit (plotId|x|z), ordine = dal più vecchio al più recente */
+    private static final Map<String, Entry> ENTRIES = new LinkedHashMap<>();
+
+    private DeadLetterStore() {}
+
+    public static final class Entry {
+        public String key;
+        public String plotId;
+        public int coordX;
+        public int coordZ;
+        public String dimension;
+        public String proprietario;
+        public String ultimoAccessoIso;
+        // "riprova" rimanda il plot come aggiornamento se lo era (non si ricalcola dalla cache)
+        public boolean update;
+        // riusata da "riprova": un invio già arrivato al backend non viene duplicato
+        public String idempotencyKey;
+        public String reason;
+        public int httpStatus;
+        public int attempts;
+        public long failedAtMs;
+
+        public PlotInfo toPlotInfo() {
+            return new PlotInfo(plotId, coordX, coordZ, dimension, proprietario, ultimoAccessoIso);
+        }
+    }
+
+    private static final class Persisted {
+        private List<Entry> entries = new ArrayList<>();
+    }
+
+    /** Carica il file in background. Le voci aggiunte prima della fine del caricamento restano. */
+    public static void init() {
+        DiskExecutor.run("falliti", () -> {
+            List<Entry> fromDisk = new ArrayList<>();
+            try {
+                Path file = FabricLoader.getInstance().getConfigDir().resolve(FILE_NAME);
+                if (Files.exists(file)) {
+                    Persisted persisted = GSON.fromJson(Files.readString(file, StandardCharsets.UTF_8), Persisted.class);
+                    if (persisted != null && persisted.entries != null) fromDisk.addAll(persisted.entries);
+                }
+            } catch (Exception e) {
+                System.out.println("[SMD][FALLITI] Lettura " + FILE_NAME + " fallita: " + e.getMessage());
+            }
+            synchronized (DeadLetterStore.class) {
+                Map<String, Entry> merged = new LinkedHashMap<>();
+                for (Entry e : fromDisk) {
+                    if (e != null && e.key != null && e.plotId != null) merged.put(e.key, e);
+                }
+                merged.putAll(ENTRIES);
+                ENTRIES.clear();
+                ENTRIES.putAll(merged);
+                trim();
+            }
+        });
+    }
+
+    public static synchronized void add(String key, PlotInfo info, boolean update, String idempotencyKey, String reason, int httpStatus, int attempts) {
+        if (key == null || info == null) return;
+        Entry e = new Entry();
+        e.key = key;
+        e.plotId = info.plotId;
+        e.coordX = info.coordX;
+        e.coordZ = info.coordZ;
+        e.dimension = info.dimension;
+        e.proprietario = info.proprietario;
+        e.ultimoAccessoIso = info.ultimoAccessoIso;
+        e.update = update;
+        e.idempotencyKey = idempotencyKey;
+        e.reason = reason;
+        e.httpStatus = httpStatus;
+        e.attempts = attempts;
+        e.failedAtMs = System.currentTimeMillis();
+        // rimuovi prima: la voce aggiornata va in fondo (più recente)
+        ENTRIES.remove(key);
+        ENTRIES.put(key, e);
+        trim();
+        save();
+    }
+
+    /** Copia delle voci, dalla più recente alla più vecchia. */
+    public static synchronized List<Entry> list() {
+        List<Entry> out = new ArrayList<>(ENTRIES.values());
+        Collections.reverse(out);
+        return out;
+    }
+
+    /** Rimuove e ritorna tutte le voci (per rimetterle in coda). */
+    public static synchronized List<Entry> drainAll() {
+        List<Entry> out = new ArrayList<>(ENTRIES.values());
+        ENTRIES.clear();
+        save();
+        return out;
+    }
+
+    public static synchronized int clear() {
+        int n = ENTRIES.size();
+        ENTRIES.clear();
+        save();
+        return n;
+    }
+
+    public static synchronized int size() {
+        return ENTRIES.size();
+    }
+
+    private static void trim() {
+        Iterator<String> it = ENTRIES.keySet().iterator();
+        while (ENTRIES.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static void save() {
+        DiskExecutor.coalesce("falliti", SAVE_COALESCE_MS, DeadLetterStore::write);
+    }
+
+    /** Scrittura su file temporaneo + rename: un crash a metà non perde la lista dei falliti. */
+    private static void write() {
+        Persisted persisted = new Persisted();
+        synchronized (DeadLetterStore.class) {
+            persisted.entries = new ArrayList<>(ENTRIES.values());
+        }
+        try {
+            Path cfgDir = FabricLoader.getInstance().getConfigDir();
+            Path file = cfgDir.resolve(FILE_NAME);
+            Path tmp = cfgDir.resolve(FILE_NAME + ".tmp");
+            Files.createDirectories(cfgDir);
+            Files.writeString(tmp, GSON.toJson(persisted), StandardCharsets.UTF_8);
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (Exception ignored) {}
+    }
+}
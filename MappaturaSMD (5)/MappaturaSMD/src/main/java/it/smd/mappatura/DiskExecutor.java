@@ -0,0 +1,104 @@
+package it.smd.mappatura;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Thread unico ("SMD-IO") per le letture/scritture su disco che non devono
+ * bloccare il render thread (config, file di cache).
+ *
+ * - run/supply: esegue subito in background.
+ * - coalesce: più richieste con la stessa chiave entro delayMs diventano una sola
+ *   esecuzione (es. 5 click nel pannello = 1 scrittura del config).
+ * - flushCoalesced: esegue subito le scritture in attesa (uscita dal gioco).
+ *
+ * Il thread è unico: le operazioni sullo stesso file non si sovrappongono mai.
+ */
+public final class DiskExecutor {
+
+    private static final ScheduledThreadPoolExecutor POOL = createPool();
+    private static final Map<String, Pending> COALESCED = new ConcurrentHashMap<>();
+
+    private DiskExecutor() {}
+
+    private static final class Pending {
+        private final Runnable task;
+        private volatile ScheduledFuture<?> future;
+
+        private Pending(Runnable task) {
+            this.task = task;
+        }
+    }
+
+    public static CompletableFuture<Void> run(String name, Runnable task) {
+        return CompletableFuture.runAsync(wrap(name, task), POOL);
+    }
+
+    public static <T> CompletableFuture<T> supply(String name, Supplier<T> task) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.get();
+            } catch (RuntimeException e) {
+                System.out.println("[SMD][IO] " + name + " fallito: " + e);
+                throw e;
+            }
+        }, POOL);
+    }
+
+    /**
+     * Pianifica {@code task} tra delayMs, a meno che ce ne sia già uno in attesa con la stessa chiave.
+     * Il task deve leggere lo stato corrente quando gira, non quello al momento della chiamata.
+     */
+    public static void coalesce(String key, long delayMs, Runnable task) {
+        Pending pending = new Pending(task);
+        if (COALESCED.putIfAbsent(key, pending) != null) return;
+        pending.future = POOL.schedule(() -> {
+            // rimosso prima di girare: una richiesta arrivata durante la scrittura ne pianifica un'altra
+            if (COALESCED.remove(key, pending)) wrap(key, task).run();
+        }, Math.max(0L, delayMs), TimeUnit.MILLISECONDS);
+    }
+
+    /** Esegue subito tutte le scritture coalescenti in attesa e aspetta la fine (max timeoutMs). */
+    public static boolean flushCoalesced(long timeoutMs) {
+        CompletableFuture<Void> all = CompletableFuture.runAsync(() -> {
+            for (String key : COALESCED.keySet()) {
+                Pending pending = COALESCED.remove(key);
+                if (pending == null) continue;
+                ScheduledFuture<?> f = pending.future;
+                if (f != null) f.cancel(false);
+                wrap(key, pending.task).run();
+            }
+        }, POOL);
+        try {
+            all.get(Math.max(0L, timeoutMs), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private static Runnable wrap(String name, Runnable task) {
+        return () -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.out.println("[SMD][IO] " + name + " fallito: " + e);
+            }
+        };
+    }
+
+    private static ScheduledThreadPoolExecutor createPool() {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "SMD-IO");
+            t.setDaemon(true);
+            return t;
+        });
+        pool.setRemoveOnCancelPolicy(true);
+        return pool;
+    }
+}
@@ -4,6 +4,7 @@ import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.IntegerArgumentType;
 import com.mojang.brigadier.arguments.StringArgumentType;
 import net.fabricmc.fabric.api.client.command.v2.ClientCommandRegistrationCallback;
 import net.fabricmc.fabric.api.client.command.v2.FabricClientCommandSource;
@@ -14,6 +15,8 @@ import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
 
 import java.net.URI;
+import java.util.List;
+import java.util.concurrent.Future;
 
 import static net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.argument;
 import static net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.literal;
@@ -22,6 +25,10 @@ import static net.fabricmc.fabric.api.client.command.v2.ClientCommandManager.lit
  * /mappatura cerca <nome>
  * /mappatura richiestawhitelist
  * /mappatura debug
+ * /mappatura falliti [lista|riprova|svuota]
+ * /mappatura offline [on|off]
+ * /mappatura sync
+ * /mappatura vicino [raggio] [nome]
  *
  * - Output in chat (non copia automaticamente)
  * - Ogni riga ha un bottone [COPIA] che copia "x z" nella clipboard
@@ -34,6 +41,14 @@ public class MappaturaCommands {
     private static final MutableText PREFIX =
             Text.literal("[SMD] ").formatted(Formatting.DARK_GRAY, Formatting.BOLD);
 
+    private static final int FALLITI_MAX_LINES = 10;
+    private static final int VICINO_DEFAULT_K = 10;
+    private static final int VICINO_MAX_LINES = 15;
+    private static final int VICINO_MAX_RAGGIO = 100_000;
+
+    // ultima ricerca in corso: una nuova /mappatura cerca annulla la precedente
+    private static Future<?> pendingSearch;
+
     public static void register() {
         ClientCommandRegistrationCallback.EVENT.register((dispatcher, registryAccess) -> registerInternal(dispatcher));
     }
@@ -48,6 +63,23 @@ public class MappaturaCommands {
                                 })))
                 .then(literal("richiestawhitelist").executes(ctx -> richiediWhitelist()))
                 .then(literal("debug").executes(ctx -> debug()))
+                .then(literal("falliti")
+                        .executes(ctx -> fallitiLista())
+                        .then(literal("lista").executes(ctx -> fallitiLista()))
+                        .then(literal("riprova").executes(ctx -> fallitiRiprova()))
+                        .then(literal("svuota").executes(ctx -> fallitiSvuota())))
+                .then(literal("offline")
+                        .executes(ctx -> offline(null))
+                        .then(literal("on").executes(ctx -> offline(true)))
+                        .then(literal("off").executes(ctx -> offline(false))))
+                .then(literal("sync").executes(ctx -> sync()))
+                .then(literal("vicino")
+                        .executes(ctx -> vicino(0, null))
+                        .then(argument("raggio", IntegerArgumentType.integer(0, VICINO_MAX_RAGGIO))
+                                .executes(ctx -> vicino(IntegerArgumentType.getInteger(ctx, "raggio"), null))
+                                .then(argument("nome", StringArgumentType.greedyString())
+                                        .executes(ctx -> vicino(IntegerArgumentType.getInteger(ctx, "raggio"),
+                                                StringArgumentType.getString(ctx, "nome").trim())))))
         );
 
         // comando diretto: /richiestawhitelist
@@ -64,7 +96,10 @@ public class MappaturaCommands {
         send(Text.literal("🔍 Ricerca di ").formatted(Formatting.GRAY)
                 .append(Text.literal(nome).formatted(Formatting.AQUA, Formatting.BOLD)));
 
-        SubmitPlotClient.searchPlotAsync(nome, r -> {
+        if (pendingSearch != null && !pendingSearch.isDone()) {
+            pendingSearch.cancel(true);
+        }
+        pendingSearch = SubmitPlotClient.searchPlotAsync(nome, r -> {
             MinecraftClient mc = MinecraftClient.getInstance();
             if (mc == null) {
                 return;
@@ -162,6 +197,155 @@ public class MappaturaCommands {
         }
     }
 
+    private static int fallitiLista() {
+        List<DeadLetterStore.Entry> entries = DeadLetterStore.list();
+        if (entries.isEmpty()) {
+            send(Text.literal("✅ Nessun invio fallito.").formatted(Formatting.GREEN));
+            return 1;
+        }
+
+        send(Text.literal("📛 Invii falliti: " + entries.size()).formatted(Formatting.GOLD, Formatting.BOLD));
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < Math.min(FALLITI_MAX_LINES, entries.size()); i++) {
+            DeadLetterStore.Entry e = entries.get(i);
+            long agoMin = Math.max(0L, now - e.failedAtMs) / 60_000L;
+            send(Text.literal("• ").formatted(Formatting.DARK_GRAY)
+                    .append(Text.literal(e.plotId).formatted(Formatting.YELLOW, Formatting.BOLD))
+                    .append(Text.literal(" (" + e.coordX + ", " + e.coordZ + ") ").formatted(Formatting.GRAY))
+                    .append(Text.literal(e.reason == null ? "SUBMIT_FAILED" : e.reason).formatted(Formatting.RED))
+                    .append(Text.literal(" " + agoMin + " min fa").formatted(Formatting.DARK_GRAY)));
+        }
+        if (entries.size() > FALLITI_MAX_LINES) {
+            send(Text.literal("… altri " + (entries.size() - FALLITI_MAX_LINES)).formatted(Formatting.GRAY));
+        }
+
+        MutableText retry = Text.literal("[RIPROVA TUTTI]")
+                .formatted(Formatting.GREEN, Formatting.BOLD)
+                .styled(s -> s.withClickEvent(new ClickEvent.RunCommand("/mappatura falliti riprova")));
+        MutableText purge = Text.literal("[SVUOTA]")
+                .formatted(Formatting.RED, Formatting.BOLD)
+                .styled(s -> s.withClickEvent(new ClickEvent.SuggestCommand("/mappatura falliti svuota")));
+        send(retry.append(Text.literal(" ")).append(purge));
+        return 1;
+    }
+
+    private static int fallitiRiprova() {
+        MappingController controller = MappaturaSMDClient.getController();
+        if (controller == null) return 0;
+        int count = controller.replayDeadLetters();
+        if (count == 0) {
+            send(Text.literal("Nessun invio fallito da riprovare.").formatted(Formatting.GRAY));
+        } else {
+            send(Text.literal("🔁 Rimessi in coda " + count + " plot.").formatted(Formatting.GREEN, Formatting.BOLD));
+        }
+        return 1;
+    }
+
+    private static int fallitiSvuota() {
+        int count = DeadLetterStore.clear();
+        send(Text.literal("🗑 Rimossi " + count + " invii falliti.").formatted(Formatting.YELLOW));
+        return 1;
+    }
+
+    /** Senza argomento inverte la modalità offline. */
+    private static int offline(Boolean enable) {
+        ConfigManager.update(c -> c.offlineCapture = enable != null ? enable : !c.offlineCapture)
+                .thenAccept(c -> MinecraftClient.getInstance().execute(() -> reportOffline(c)));
+        return 1;
+    }
+
+    private static void reportOffline(AppConfig cfg) {
+        int pending = OfflineCaptureStore.size();
+        if (cfg.offlineCapture) {
+            send(Text.literal("📥 Cattura offline ATTIVA").formatted(Formatting.GOLD, Formatting.BOLD)
+                    .append(Text.literal(": i plot restano in locale (" + pending + " da sincronizzare).").formatted(Formatting.GRAY)));
+        } else {
+            send(Text.literal("📡 Cattura offline disattivata").formatted(Formatting.GREEN, Formatting.BOLD)
+                    .append(Text.literal(pending > 0 ? " (" + pending + " plot da sincronizzare)" : "").formatted(Formatting.GRAY)));
+        }
+        if (pending > 0) {
+            MutableText syncBtn = Text.literal("[SYNC]")
+                    .formatted(Formatting.AQUA, Formatting.BOLD)
+                    .styled(s -> s.withClickEvent(new ClickEvent.RunCommand("/mappatura sync")));
+            send(syncBtn);
+        }
+    }
+
+    private static int sync() {
+        MappingController controller = MappaturaSMDClient.getController();
+        if (controller == null) return 0;
+        if (OfflineCaptureStore.size() == 0) {
+            send(Text.literal("Nessun plot offline da sincronizzare.").formatted(Formatting.GRAY));
+            return 1;
+        }
+        String blockReason = controller.getSyncBlockReason();
+        if (blockReason != null) {
+            send(Text.literal("❌ Sync non possibile: ").formatted(Formatting.RED, Formatting.BOLD)
+                    .append(Text.literal(blockReason).formatted(Formatting.RED)));
+            return 0;
+        }
+        int[] counts = controller.syncOffline();
+        if (counts[0] == 0 && counts[1] == 0) {
+            send(Text.literal("Nessun plot offline per questa sessione e questo server (" + counts[2]
+                    + " catturati altrove, restano in attesa).").formatted(Formatting.GRAY));
+            return 1;
+        }
+        send(Text.literal("⬆️ Sync avviata: " + counts[0] + " plot da inviare").formatted(Formatting.GREEN, Formatting.BOLD)
+                .append(Text.literal(counts[1] > 0 ? " (" + counts[1] + " invariati, saltati)" : "").formatted(Formatting.GRAY))
+                .append(Text.literal(counts[2] > 0 ? " — " + counts[2] + " di altre sessioni/server restano in attesa" : "").formatted(Formatting.GRAY)));
+        return 1;
+    }
+
+    /**
+     * Plot in cache attorno al giocatore (dimensione corrente).
+     * raggio 0 = i più vicini, altrimenti tutti quelli entro il raggio; nome filtra per proprietario.
+     */
+    private static int vicino(int raggio, String nome) {
+        MinecraftClient mc = MinecraftClient.getInstance();
+        if (mc == null || mc.player == null) return 0;
+        int px = mc.player.getBlockPos().getX();
+        int pz = mc.player.getBlockPos().getZ();
+        String dimension = null;
+        if (mc.world != null && mc.world.getRegistryKey() != null) {
+            dimension = mc.world.getRegistryKey().getValue().getPath();
+        }
+        if (dimension == null || dimension.isBlank()) dimension = ConfigManager.get().dimensionDefault;
+        String owner = nome == null || nome.isBlank() ? null : nome;
+
+        List<PlotCacheManager.Entry> found = raggio > 0
+                ? PlotCacheManager.withinRadius(px, pz, dimension, raggio, owner)
+                : PlotCacheManager.nearest(px, pz, dimension, VICINO_DEFAULT_K, owner);
+        if (found.isEmpty()) {
+            send(Text.literal(raggio > 0 ? "Nessun plot mappato entro " + raggio + " blocchi." : "Nessun plot mappato in questa dimensione.")
+                    .formatted(Formatting.GRAY));
+            return 1;
+        }
+
+        String title = raggio > 0 ? "📍 Plot entro " + raggio + " blocchi: " + found.size() : "📍 Plot più vicini";
+        send(Text.literal(title).formatted(Formatting.GOLD, Formatting.BOLD)
+                .append(Text.literal(owner != null ? " (" + owner + ")" : "").formatted(Formatting.GRAY)));
+        for (int i = 0; i < Math.min(VICINO_MAX_LINES, found.size()); i++) {
+            PlotCacheManager.Entry e = found.get(i);
+            long dist = Math.round(Math.hypot((double) e.coordX - px, (double) e.coordZ - pz));
+            String coords = e.coordX + " " + e.coordZ;
+
+            MutableText copyBtn = Text.literal(" [COPIA]")
+                    .formatted(Formatting.AQUA, Formatting.BOLD)
+                    .styled(s -> s.withClickEvent(new ClickEvent.CopyToClipboard(coords)));
+
+            send(Text.literal("• ").formatted(Formatting.DARK_GRAY)
+                    .append(Text.literal(e.plotId).formatted(Formatting.GREEN, Formatting.BOLD))
+                    .append(Text.literal(" (" + e.coordX + ", " + e.coordZ + ") ").formatted(Formatting.YELLOW))
+                    .append(Text.literal(e.owner == null ? "?" : e.owner).formatted(Formatting.WHITE))
+                    .append(Text.literal(" " + dist + "m").formatted(Formatting.GRAY))
+                    .append(copyBtn));
+        }
+        if (found.size() > VICINO_MAX_LINES) {
+            send(Text.literal("… altri " + (found.size() - VICINO_MAX_LINES)).formatted(Formatting.GRAY));
+        }
+        return 1;
+    }
+
     /**
      * /mappatura debug
      * Stampa in chat: endpoint, url effettive, sessionCode, username, uuid e fa un checkAccess live.
@@ -199,6 +383,25 @@ public class MappaturaCommands {
         send(Text.literal("• operator_uuid: ").formatted(Formatting.GRAY)
                 .append(Text.literal(opUuid == null ? "(null)" : opUuid).formatted(Formatting.GREEN)));
 
+        send(Text.literal("• Circuito backend: ").formatted(Formatting.GRAY)
+                .append(Text.literal(SubmitPlotClient.describeCircuit()).formatted(Formatting.DARK_AQUA)));
+        send(Text.literal("• Connessione: ").formatted(Formatting.GRAY)
+                .append(Text.literal(SubmitPlotClient.describeConnection()).formatted(Formatting.DARK_AQUA)));
+        send(Text.literal("• Rate limit: ").formatted(Formatting.GRAY)
+                .append(Text.literal(BackendRateLimiter.describe()).formatted(Formatting.DARK_AQUA)));
+        send(Text.literal("• HTTP executor:").formatted(Formatting.GRAY));
+        for (String line : BackendExecutor.describe()) {
+            send(Text.literal("  " + line).formatted(Formatting.DARK_AQUA));
+        }
+
+        MappingController controller = MappaturaSMDClient.getController();
+        if (controller != null) {
+            send(Text.literal("• Coda invii:").formatted(Formatting.GRAY));
+            for (String line : controller.describeSubmitQueue()) {
+                send(Text.literal("  " + line).formatted(Formatting.DARK_AQUA));
+            }
+        }
+
         // CheckAccess live
         send(Text.literal("⏳ checkAccess…").formatted(Formatting.GRAY));
         SubmitPlotClient.checkAccessAsync(session.isBlank() ? null : session, r -> {
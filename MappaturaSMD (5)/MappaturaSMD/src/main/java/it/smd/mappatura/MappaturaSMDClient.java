@@ -1,6 +1,7 @@
 package it.smd.mappatura;
 
 import net.fabricmc.api.ClientModInitializer;
+import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import net.fabricmc.fabric.api.client.keybinding.v1.KeyBindingHelper;
 import net.fabricmc.fabric.api.client.message.v1.ClientReceiveMessageEvents;
@@ -20,10 +21,15 @@ public class MappaturaSMDClient implements ClientModInitializer {
 
     @Override
     public void onInitializeClient() {
-        ConfigManager.init();
+        // config letto sul thread SMD-IO; la coda invii ripristina il WAL sul suo thread
+        ConfigManager.initAsync();
+        // HttpClient, SSL, Gson e DNS pronti prima del primo checkAccess
+        SubmitPlotClient.warmUpMachineryAsync();
 
-        // ✅ Cache solo per la sessione (si svuota quando esci/rientri)
+        // ✅ Cache persistente per codice sessione + server (caricata al JOIN)
         PlotCacheManager.init();
+        DeadLetterStore.init();
+        OfflineCaptureStore.init();
 
         // ✅ Comandi /mappatura (cerca/copia/svuotaCache/refresh/richiestawhitelist)
         MappaturaCommands.register();
@@ -68,13 +74,21 @@ public class MappaturaSMDClient implements ClientModInitializer {
         // stop automatico quando slogghi
         ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> {
             if (controller != null && controller.isRunning()) controller.stop();
+            // gli invii in volo finiscono in background, poi il WAL va su disco; la coda riparte al JOIN
+            if (controller != null) controller.drainSubmitsAsync();
+            BackendExecutor.cancelPending();
             checkedOnce = false;
             authorized = false;
-            PlotCacheManager.clear();
+            // la cache resta: al prossimo JOIN sullo stesso server riparte da qui
+            PlotCacheManager.flushPending();
         });
 
         // auto-start quando entri, se impostato e codice sessione presente
         ClientPlayConnectionEvents.JOIN.register((handler, sender, client) -> {
+            controller.resumeSubmits();
+            PlotCacheManager.ensureNamespace();
+            // ogni server ha la sua griglia: si ricalibra (seed dalla cache del namespace)
+            PlotGridCalibrator.reset();
             AppConfig cfg = ConfigManager.get();
             boolean hasSession = cfg.sessionCode != null && !cfg.sessionCode.isBlank();
             if (cfg.autoStart && hasSession) {
@@ -83,6 +97,14 @@ public class MappaturaSMDClient implements ClientModInitializer {
             }
         });
 
+        // chiusura del gioco: drain degli invii in volo (submitDrainTimeoutMs), WAL e salvataggi su disco
+        ClientLifecycleEvents.CLIENT_STOPPING.register(client -> {
+            if (controller != null) controller.drainSubmits();
+            PlotCacheManager.flushPending();
+            ConfigManager.flush(1_000L);
+            SubmitQueueStorage.flush(1_000L);
+        });
+
         HudOverlay.show(Text.literal("Mappatura SMD pronta. Premi O per aprire il pannello."));
     }
 
@@ -113,17 +135,16 @@ public class MappaturaSMDClient implements ClientModInitializer {
             MinecraftClient mc = MinecraftClient.getInstance();
             if (mc != null) {
                 mc.execute(() -> {
-                    AppConfig updated = ConfigManager.get();
-                    if (updated != null) {
-                        updated.authorized = authorized;
-                        String fallback = authorized ? "OK" : "NOT_AUTHORIZED";
-                        String reason = result != null && result.reason != null ? result.reason : fallback;
-                        if (networkError && result != null && result.debug != null && result.debug.has("exception")) {
-                            reason = "NETWORK_ERROR (" + result.debug.get("exception").getAsString() + ")";
-                        }
-                        updated.lastAuthMessage = reason;
-                        ConfigManager.save();
+                    String fallback = authorized ? "OK" : "NOT_AUTHORIZED";
+                    String reason = result != null && result.reason != null ? result.reason : fallback;
+                    if (networkError && result != null && result.debug != null && result.debug.has("exception")) {
+                        reason = "NETWORK_ERROR (" + result.debug.get("exception").getAsString() + ")";
                     }
+                    String authMessage = reason;
+                    ConfigManager.update(updated -> {
+                        updated.authorized = authorized;
+                        updated.lastAuthMessage = authMessage;
+                    });
                 });
             }
         });
@@ -132,4 +153,8 @@ public class MappaturaSMDClient implements ClientModInitializer {
     public static boolean isAuthorized() {
         return authorized;
     }
+
+    public static MappingController getController() {
+        return controller;
+    }
 }
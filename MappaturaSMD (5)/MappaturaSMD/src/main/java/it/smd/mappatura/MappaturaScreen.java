@@ -8,6 +8,8 @@ import net.minecraft.client.gui.widget.TextFieldWidget;
 import net.minecraft.text.Text;
 import net.minecraft.util.Formatting;
 
+import java.util.function.Consumer;
+
 public class MappaturaScreen extends Screen {
 
     private final MappingController controller;
@@ -32,45 +34,42 @@ public class MappaturaScreen extends Screen {
         sessionField.setPlaceholder(Text.literal("SMD-ZR-YYYYMMDD-XXXXX"));
         sessionField.setText(cfg.sessionCode == null ? "" : cfg.sessionCode);
         addDrawableChild(sessionField);
+        // pannello aperto durante il caricamento del config: il campo si riempie appena è pronto
+        // (se l'utente non ha già scritto), altrimenti un salvataggio cancellerebbe il codice
+        ConfigManager.whenLoaded().thenAccept(loaded -> MinecraftClient.getInstance().execute(() -> {
+            if (sessionField.getText().isEmpty() && loaded.sessionCode != null) sessionField.setText(loaded.sessionCode);
+        }));
 
         ButtonWidget autoStartBtn = ButtonWidget.builder(
                 Text.literal(cfg.autoStart ? "Auto-start: ON" : "Auto-start: OFF")
                         .formatted(cfg.autoStart ? Formatting.GREEN : Formatting.GRAY),
-                btn -> {
-                    cfg.autoStart = !cfg.autoStart;
-                    ConfigManager.save();
-                    btn.setMessage(Text.literal(cfg.autoStart ? "Auto-start: ON" : "Auto-start: OFF")
-                            .formatted(cfg.autoStart ? Formatting.GREEN : Formatting.GRAY));
-                }).dimensions(x, y + 55, fieldW, 20).build();
+                btn -> ConfigManager.update(c -> c.autoStart = !c.autoStart).thenAccept(c ->
+                        MinecraftClient.getInstance().execute(() -> btn.setMessage(
+                                Text.literal(c.autoStart ? "Auto-start: ON" : "Auto-start: OFF")
+                                        .formatted(c.autoStart ? Formatting.GREEN : Formatting.GRAY))))
+                ).dimensions(x, y + 55, fieldW, 20).build();
         addDrawableChild(autoStartBtn);
 
         ButtonWidget saveTestBtn = ButtonWidget.builder(
                 Text.literal("Salva + Test"),
-                btn -> {
-                    cfg.sessionCode = sessionField.getText().trim();
-                    ConfigManager.save();
-                    SubmitPlotClient.checkAccessAsync(cfg.sessionCode, ar -> {
-                        MinecraftClient.getInstance().execute(() -> {
-                            if (ar == null) {
-                                HudOverlay.show(Text.literal("⟡ Errore di rete").formatted(Formatting.RED));
-                            } else if (ar.authorized) {
-                                HudOverlay.show(Text.literal("⟡ COLLEGATO").formatted(Formatting.GREEN));
-                            } else {
-                                HudOverlay.show(Text.literal("⟡ " + ar.reason).formatted(Formatting.RED));
-                            }
-                        });
+                btn -> applySessionCode(c -> SubmitPlotClient.checkAccessAsync(c.sessionCode, ar -> {
+                    MinecraftClient.getInstance().execute(() -> {
+                        if (ar == null) {
+                            HudOverlay.show(Text.literal("⟡ Errore di rete").formatted(Formatting.RED));
+                        } else if (ar.authorized) {
+                            HudOverlay.show(Text.literal("⟡ COLLEGATO").formatted(Formatting.GREEN));
+                        } else {
+                            HudOverlay.show(Text.literal("⟡ " + ar.reason).formatted(Formatting.RED));
+                        }
                     });
-                }).dimensions(x, y + 85, fieldW, 20).build();
+                }))).dimensions(x, y + 85, fieldW, 20).build();
         addDrawableChild(saveTestBtn);
 
         ButtonWidget toggleBtn = ButtonWidget.builder(
                 Text.literal(controller.isRunning() ? "Ferma mappatura" : "Avvia mappatura")
                         .formatted(controller.isRunning() ? Formatting.RED : Formatting.GREEN),
-                btn -> {
-                    cfg.sessionCode = sessionField.getText().trim();
-                    ConfigManager.save();
-
-                    if (cfg.sessionCode == null || cfg.sessionCode.isBlank()) {
+                btn -> applySessionCode(c -> {
+                    if (c.sessionCode == null || c.sessionCode.isBlank()) {
                         HudOverlay.show(Text.literal("⚠ Inserisci un codice sessione prima di avviare."));
                         return;
                     }
@@ -84,10 +83,22 @@ public class MappaturaScreen extends Screen {
                         btn.setMessage(Text.literal("Ferma mappatura").formatted(Formatting.RED));
                         HudOverlay.show(Text.literal("▶ Mappatura avviata"));
                     }
-                }).dimensions(x, y + 115, fieldW, 20).build();
+                })).dimensions(x, y + 115, fieldW, 20).build();
         addDrawableChild(toggleBtn);
     }
 
+    /**
+     * Salva il codice sessione del campo (sul config caricato); se è cambiato la cache passa
+     * al suo namespace. then gira sul thread del client con il config aggiornato.
+     */
+    private void applySessionCode(Consumer<AppConfig> then) {
+        String code = sessionField.getText().trim();
+        ConfigManager.update(c -> c.sessionCode = code).thenAccept(c -> MinecraftClient.getInstance().execute(() -> {
+            PlotCacheManager.ensureNamespace();
+            then.accept(c);
+        }));
+    }
+
     @Override
     public void render(DrawContext context, int mouseX, int mouseY, float delta) {
         super.render(context, mouseX, mouseY, delta);
@@ -10,8 +10,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Controller principale della mappatura.
@@ -27,11 +33,28 @@ public class MappingController {
     private static final int MAX_ATTEMPTS = 3;
     private static final boolean DEBUG_THROUGHPUT = false;
     private static final long THROUGHPUT_WINDOW_MS = 60_000L;
-    private static final int SUBMIT_MAX_ATTEMPTS = 5;
-    private static final long SUBMIT_RETRY_BASE_DELAY_MS = 750L;
-    private static final int SUBMIT_WORKERS = 2;
+    private static final long SUBMIT_BLOCKED_POLL_MS = 750L;
+    private static final int SUBMIT_BATCH_MAX = 25;
+    private static final long SUBMIT_BATCH_MAX_LINGER_MS = 250L;
+    // anche a drain scaduto, il WAL ha almeno questo tempo per arrivare su disco
+    private static final long SUBMIT_DRAIN_MIN_FLUSH_MS = 500L;
     private static final long SUBMIT_BLOCK_WARN_COOLDOWN_MS = 10_000L;
     private static final long SUBMIT_RETRY_WARN_COOLDOWN_MS = 5_000L;
+    private static final int SUBMIT_DEBUG_RETRY_LINES = 5;
+    // task tenuti in memoria dalla coda invii; oltre si parcheggiano su disco (spill)
+    private static final int SUBMIT_MEMORY_WINDOW = 200;
+    private static final int SUBMIT_SPILL_REFILL = 100;
+    // backpressure sulla scansione: sopra LOW rallenta, da HIGH in pausa finché non torna a LOW
+    private static final int SUBMIT_BACKLOG_LOW = 100;
+    private static final int SUBMIT_BACKLOG_HIGH = 300;
+    private static final long SUBMIT_SLOW_COOLDOWN_FACTOR = 3L;
+    private static final long SUBMIT_BACKPRESSURE_HUD_MS = 3_000L;
+    private static final long SYNC_PROGRESS_HUD_MS = 1_500L;
+    private static final long SYNC_WAL_FLUSH_TIMEOUT_MS = 5_000L;
+    // ultimi plot letti (anche non ancora in cache: invio in coda o cattura offline)
+    private static final int RECENT_PLOTS = 64;
+    // plot in cache attorno al giocatore con cui parte la calibrazione della griglia
+    private static final int GRID_SEED_PLOTS = 256;
 
     private boolean running = false;
     private final ChatPlotInfoParser parser;
@@ -50,6 +73,28 @@ public class MappingController {
     private long lastSubmitRetryWarnAtMs = 0L;
     private String lastSubmitBlockReason = null;
     private boolean forceRunNextTick = false;
+    private Backpressure backpressure = Backpressure.NORMAL;
+    private long lastBackpressureHudAtMs = 0L;
+    // plot riletti identici all'ultimo invio (nessuna richiesta di rete)
+    private volatile long skippedUnchanged = 0L;
+    // chunk in cui /plot info non è partito perché la posizione è già coperta da un plot noto
+    private volatile long skippedCovered = 0L;
+    // comandi risparmiati grazie alla griglia calibrata (strade, plot già noti o già richiesti)
+    private volatile long skippedByGrid = 0L;
+    private String lastGridSkip = null;
+    private final int[] recentX = new int[RECENT_PLOTS];
+    private final int[] recentZ = new int[RECENT_PLOTS];
+    private final String[] recentDim = new String[RECENT_PLOTS];
+    private final String[] recentIds = new String[RECENT_PLOTS];
+    private int recentCount = 0;
+    private int recentNext = 0;
+    // avanzamento di /mappatura sync (task marcati sync nella coda invii)
+    private final AtomicInteger syncTotal = new AtomicInteger();
+    private final AtomicInteger syncDone = new AtomicInteger();
+    private final AtomicInteger syncFailed = new AtomicInteger();
+    private volatile long lastSyncHudAtMs = 0L;
+
+    private enum Backpressure { NORMAL, SLOW, PAUSED }
 
     private static final class PlotRequest {
         private final long requestId;
@@ -59,9 +104,15 @@ public class MappingController {
         private final int chunkZ;
         private final int attempt;
         private final boolean priority;
+        // plotId previsto dalla griglia (null se non calibrata o posizione incerta)
+        private final String predictedPlotId;
         private long sentAtMs;
+        // posizione del giocatore all'invio del comando (è lì che il server risponde)
+        private Integer sentX;
+        private Integer sentZ;
 
-        private PlotRequest(long requestId, Integer fallbackX, Integer fallbackZ, int chunkX, int chunkZ, int attempt, boolean priority) {
+        private PlotRequest(long requestId, Integer fallbackX, Integer fallbackZ, int chunkX, int chunkZ, int attempt,
+                            boolean priority, String predictedPlotId) {
             this.requestId = requestId;
             this.fallbackX = fallbackX;
             this.fallbackZ = fallbackZ;
@@ -69,12 +120,16 @@ public class MappingController {
             this.chunkZ = chunkZ;
             this.attempt = attempt;
             this.priority = priority;
+            this.predictedPlotId = predictedPlotId;
         }
     }
 
     public MappingController() {
         this.parser = new ChatPlotInfoParser(this);
         this.submitQueue = new SubmitPlotQueue();
+        // il fit della griglia gira in background: l'avviso arriva quando è pubblicato
+        PlotGridCalibrator.setOnCalibrated(dimension -> dispatchToMainThread(() -> HudOverlay.showBadge(
+                "📐 Griglia plot calibrata: " + PlotGridCalibrator.describe(dimension), HudOverlay.Badge.NEUTRAL)));
     }
 
     public void start() {
@@ -94,8 +149,16 @@ public class MappingController {
         throughputWindowStartMs = System.currentTimeMillis();
         lastChunkX = null;
         lastChunkZ = null;
+        recentCount = 0;
+        recentNext = 0;
+        lastGridSkip = null;
         forceRunNextTick = true;
+        backpressure = Backpressure.NORMAL;
         running = true;
+        // il codice sessione può essere cambiato dal pannello dopo il JOIN
+        PlotCacheManager.ensureNamespace();
+        // connessione pronta prima del primo submit
+        SubmitPlotClient.warmUpAsync();
     }
 
     public void stop() {
@@ -118,11 +181,132 @@ public class MappingController {
         return running;
     }
 
+    /**
+     * Rimette in coda tutti gli invii falliti (/mappatura falliti riprova),
+     * con tentativi e scadenza azzerati. Ritorna quanti plot sono stati accodati.
+     */
+    public int replayDeadLetters() {
+        int count = 0;
+        for (DeadLetterStore.Entry e : DeadLetterStore.drainAll()) {
+            // stessa idempotency key: se il backend l'aveva già elaborato risponde "già fatto"
+            submitQueue.enqueue(new SubmitTask(e.toPlotInfo(), e.update, e.idempotencyKey));
+            count++;
+        }
+        return count;
+    }
+
+    /** Modalità offline: i plot letti vanno in OfflineCaptureStore invece che alla coda invii. */
+    public static boolean isOfflineCapture() {
+        AppConfig cfg = ConfigManager.get();
+        return cfg != null && cfg.offlineCapture;
+    }
+
+    /** Perché /mappatura sync non può partire (null = può partire). */
+    public String getSyncBlockReason() {
+        return getSubmitBlockReason();
+    }
+
+    /**
+     * /mappatura sync: passa alla coda invii solo il delta dei plot catturati offline
+     * (i plot identici all'ultimo invio in cache vengono scartati senza rete).
+     * La coda li invia in batch paralleli; quando sono nel WAL escono dallo store offline,
+     * quindi un'interruzione riprende dal WAL (o dallo store, se non ci erano ancora arrivati).
+     * Solo le catture della sessione e del server correnti: le altre restano nello store.
+     * Ritorna {accodati, invariati, di altre sessioni/server}.
+     */
+    public int[] syncOffline() {
+        // la cache usata per il delta deve essere quella della sessione corrente
+        PlotCacheManager.ensureNamespace();
+        List<OfflineCaptureStore.Captured> captured = OfflineCaptureStore.listCurrent();
+        int elsewhere = OfflineCaptureStore.size() - captured.size();
+        List<OfflineCaptureStore.Captured> handled = new ArrayList<>(captured.size());
+        if (syncDone.get() >= syncTotal.get()) {
+            // sync precedente finita: il contatore riparte da zero
+            syncTotal.set(0);
+            syncDone.set(0);
+            syncFailed.set(0);
+        }
+        int queued = 0;
+        int unchanged = 0;
+        for (OfflineCaptureStore.Captured c : captured) {
+            PlotInfo info = c.toPlotInfo();
+            PlotCacheManager.Change change = PlotCacheManager.classify(info);
+            handled.add(c);
+            if (change == PlotCacheManager.Change.UNCHANGED) {
+                unchanged++;
+                continue;
+            }
+            SubmitTask task = new SubmitTask(info, change == PlotCacheManager.Change.CHANGED, c.idempotencyKey);
+            task.sync = true;
+            syncTotal.incrementAndGet();
+            submitQueue.enqueue(task);
+            queued++;
+        }
+        lastSyncHudAtMs = 0L;
+        if (!handled.isEmpty()) {
+            CompletableFuture.runAsync(() -> {
+                // fuori dallo store solo quando i record sono davvero nel WAL
+                if (SubmitQueueStorage.flush(SYNC_WAL_FLUSH_TIMEOUT_MS)) {
+                    OfflineCaptureStore.markSynced(handled);
+                }
+            });
+        }
+        return new int[] { queued, unchanged, elsewhere };
+    }
+
+    private void onSyncTaskDone(boolean success) {
+        int done = syncDone.incrementAndGet();
+        int failed = success ? syncFailed.get() : syncFailed.incrementAndGet();
+        int total = syncTotal.get();
+        long now = System.currentTimeMillis();
+        boolean finished = done >= total;
+        if (!finished && now - lastSyncHudAtMs < SYNC_PROGRESS_HUD_MS) return;
+        lastSyncHudAtMs = now;
+        String text = finished
+                ? "✅ Sync completata: " + (done - failed) + "/" + total + " inviati" + (failed > 0 ? ", " + failed + " falliti (/mappatura falliti)" : "")
+                : "⬆️ Sync " + done + "/" + total + (failed > 0 ? " (" + failed + " falliti)" : "");
+        HudOverlay.Badge badge = finished ? (failed > 0 ? HudOverlay.Badge.ERROR : HudOverlay.Badge.OK) : HudOverlay.Badge.NEUTRAL;
+        dispatchToMainThread(() -> HudOverlay.showBadge(text, badge));
+    }
+
+    /**
+     * Uscita dal mondo: ferma i nuovi invii e, in background, aspetta quelli in volo
+     * (max submitDrainTimeoutMs) prima di portare il WAL su disco.
+     */
+    public CompletableFuture<Boolean> drainSubmitsAsync() {
+        long timeoutMs = drainTimeoutMs();
+        // pausa subito (non nel thread di drain): un JOIN immediato la toglie senza race
+        submitQueue.pause();
+        return CompletableFuture.supplyAsync(() -> submitQueue.drain(timeoutMs));
+    }
+
+    /** Chiusura del gioco: come drainSubmitsAsync ma blocca fino alla fine (max submitDrainTimeoutMs). */
+    public boolean drainSubmits() {
+        submitQueue.pause();
+        return submitQueue.drain(drainTimeoutMs());
+    }
+
+    /** Rientro nel mondo: gli invii ripartono. */
+    public void resumeSubmits() {
+        submitQueue.resume();
+    }
+
+    private static long drainTimeoutMs() {
+        AppConfig cfg = ConfigManager.get();
+        return cfg != null ? cfg.submitDrainTimeoutMs : AppConfig.defaults().submitDrainTimeoutMs;
+    }
+
+    /** Stato della coda di invio per /mappatura debug. */
+    public List<String> describeSubmitQueue() {
+        return submitQueue.describe();
+    }
+
     public void onTick(MinecraftClient client) {
         if (!running) return;
         if (client == null) return;
 
         TickGate.INSTANCE.tick();
+        SubmitPlotClient.keepAliveIfIdle();
 
         AppConfig cfg = ConfigManager.get();
         parser.tick(cfg != null ? cfg.parserTimeoutMs : 0L);
@@ -137,11 +321,12 @@ public class MappingController {
 
         if (client.player == null || client.getNetworkHandler() == null) return;
 
+        boolean offline = cfg != null && cfg.offlineCapture;
         String sessionCode = cfg != null && cfg.sessionCode != null ? cfg.sessionCode.trim() : "";
-        if (sessionCode.isBlank()) {
+        if (sessionCode.isBlank() && !offline) {
             if (!missingSessionWarned) {
                 missingSessionWarned = true;
-                HudOverlay.showBadge("⚠️ Inserisci un codice sessione prima di avviare la mappatura.", HudOverlay.Badge.ERROR);
+                HudOverlay.showBadge("⚠️ Inserisci un codice sessione prima di avviare la mappatura (o usa /mappatura offline).", HudOverlay.Badge.ERROR);
             }
             return;
         }
@@ -151,7 +336,44 @@ public class MappingController {
         if (cooldown < 0) cooldown = 0;
 
         maybeEnqueueRequest(client);
-        startNextIfReady(client, now, cooldown);
+        // offline la coda invii non cresce: si scansiona sempre a piena velocità
+        if (offline) {
+            backpressure = Backpressure.NORMAL;
+            startNextIfReady(client, now, cooldown, false);
+            return;
+        }
+        updateBackpressure(now);
+        if (backpressure == Backpressure.PAUSED) return;
+        if (backpressure == Backpressure.SLOW) cooldown = Math.max(cooldown, 1L) * SUBMIT_SLOW_COOLDOWN_FACTOR;
+        startNextIfReady(client, now, cooldown, backpressure == Backpressure.SLOW);
+    }
+
+    /**
+     * Backpressure dalla coda invii: con il backend lento i /plot info rallentano
+     * (cooldown x3, anche per i cambi chunk) e sopra SUBMIT_BACKLOG_HIGH si fermano
+     * finché gli invii in attesa non scendono a SUBMIT_BACKLOG_LOW (isteresi).
+     */
+    private void updateBackpressure(long now) {
+        int backlog = submitQueue.backlog();
+        Backpressure next;
+        if (backlog >= SUBMIT_BACKLOG_HIGH || (backpressure == Backpressure.PAUSED && backlog > SUBMIT_BACKLOG_LOW)) {
+            next = Backpressure.PAUSED;
+        } else if (backlog > SUBMIT_BACKLOG_LOW) {
+            next = Backpressure.SLOW;
+        } else {
+            next = Backpressure.NORMAL;
+        }
+
+        boolean changed = next != backpressure;
+        backpressure = next;
+        if (next == Backpressure.PAUSED && (changed || now - lastBackpressureHudAtMs >= SUBMIT_BACKPRESSURE_HUD_MS)) {
+            lastBackpressureHudAtMs = now;
+            HudOverlay.showBadge("⏸ Scansione in pausa: " + backlog + " invii in attesa (backend lento)", HudOverlay.Badge.NEUTRAL);
+        } else if (changed && next == Backpressure.SLOW) {
+            HudOverlay.showBadge("🐢 Scansione rallentata: " + backlog + " invii in attesa", HudOverlay.Badge.NEUTRAL);
+        } else if (changed) {
+            HudOverlay.showBadge("▶ Scansione a velocità normale (" + backlog + " invii in attesa)", HudOverlay.Badge.OK);
+        }
     }
 
     public void onChat(Text message) {
@@ -178,21 +400,41 @@ public class MappingController {
 
         recordThroughput();
 
-        boolean alreadyMapped = PlotCacheManager.isPlotMapped(info);
+        // la risposta di /plot info vale sempre: un contrasto sospende solo le predizioni della griglia
+        if (!PlotGridCalibrator.verify(info)) {
+            HudOverlay.showBadge("⚠️ Plot " + info.plotId + " fuori dalla griglia calibrata: predizioni sospese", HudOverlay.Badge.NEUTRAL);
+        }
+        rememberRecent(info);
+        PlotGridCalibrator.addSample(info);
+
+        PlotCacheManager.Change change = PlotCacheManager.classify(info);
 
         // 1) Enqueue push in background (istananeo sul gameplay)
-        if (alreadyMapped) {
-            HudOverlay.showBadge("⚠️ Plot già mappato (cache): " + info.plotId, HudOverlay.Badge.NEUTRAL);
+        if (change == PlotCacheManager.Change.UNCHANGED) {
+            skippedUnchanged++;
+            HudOverlay.showBadge("⚠️ Plot già mappato, invariato (cache): " + info.plotId, HudOverlay.Badge.NEUTRAL);
             return;
         }
 
+        if (isOfflineCapture()) {
+            if (OfflineCaptureStore.capture(info)) {
+                HudOverlay.showBadge("📥 Plot salvato offline: " + info.plotId + " (" + OfflineCaptureStore.size() + " da sincronizzare)", HudOverlay.Badge.NEUTRAL);
+            } else {
+                HudOverlay.showBadge("⚠️ Plot già salvato offline: " + info.plotId, HudOverlay.Badge.NEUTRAL);
+            }
+            return;
+        }
+
+        // solo i plot nuovi o cambiati (proprietario/ultimo accesso) vanno inviati
+        boolean update = change == PlotCacheManager.Change.CHANGED;
+        String label = update ? "🔄 Plot cambiato in coda: " : "⏱️ Plot in coda: ";
         if (!canSubmitNow(true)) {
-            submitQueue.enqueue(new SubmitTask(info));
-            HudOverlay.showBadge("⏱️ Plot in coda: " + info.plotId + " (" + info.coordX + ", " + info.coordZ + ")", HudOverlay.Badge.NEUTRAL);
+            submitQueue.enqueue(new SubmitTask(info, update));
+            HudOverlay.showBadge(label + info.plotId + " (" + info.coordX + ", " + info.coordZ + ")", HudOverlay.Badge.NEUTRAL);
             return;
         }
-        submitQueue.enqueue(new SubmitTask(info));
-        HudOverlay.showBadge("⏱️ Plot in coda: " + info.plotId + " (" + info.coordX + ", " + info.coordZ + ")", HudOverlay.Badge.NEUTRAL);
+        submitQueue.enqueue(new SubmitTask(info, update));
+        HudOverlay.showBadge(label + info.plotId + " (" + info.coordX + ", " + info.coordZ + ")", HudOverlay.Badge.NEUTRAL);
     }
 
     /**
@@ -223,6 +465,11 @@ public class MappingController {
         PlotRequest failed = inFlight;
         inFlight = null;
         clearPendingChunk(failed);
+        Integer roadX = failed.sentX != null ? failed.sentX : failed.fallbackX;
+        Integer roadZ = failed.sentZ != null ? failed.sentZ : failed.fallbackZ;
+        if (roadX != null && roadZ != null) {
+            PlotGridCalibrator.addRoadSample(currentDimension(MinecraftClient.getInstance()), roadX, roadZ);
+        }
 
         String detail = (reason == null || reason.isBlank()) ? "Plot info non disponibile" : reason;
         HudOverlay.showBadge("⚠️ " + detail + " (chunk " + failed.chunkX + ", " + failed.chunkZ + ")", HudOverlay.Badge.NEUTRAL);
@@ -253,6 +500,35 @@ public class MappingController {
         int chunkZ = client.player.getChunkPos().z;
         boolean chunkChanged = lastChunkX == null || lastChunkZ == null || chunkX != lastChunkX || chunkZ != lastChunkZ;
         if (!chunkChanged) return;
+
+        int fallbackX = client.player.getBlockPos().getX();
+        int fallbackZ = client.player.getBlockPos().getZ();
+        String dimension = currentDimension(client);
+        seedGridIfNeeded(dimension, fallbackX, fallbackZ);
+
+        // griglia calibrata: strade e plot già noti/richiesti non costano comandi. Il chunk non viene
+        // segnato: se nello stesso chunk si entra in un plot nuovo, la richiesta parte al tick dopo.
+        // In ri-scansione (rescanKnownPlots) si saltano solo le strade: i plot noti vanno riletti
+        // per accorgersi dei cambi.
+        AppConfig cfg = ConfigManager.get();
+        boolean rescan = cfg != null && cfg.rescanKnownPlots;
+        PlotGridCalibrator.Prediction predicted = PlotGridCalibrator.predict(dimension, fallbackX, fallbackZ);
+        if (predicted != null && (predicted.road
+                || (!rescan && (isKnownPlot(predicted.plotId) || isRequested(predicted.plotId))))) {
+            String skipKey = chunkX + ":" + chunkZ + ":" + (predicted.road ? "strada" : predicted.plotId);
+            if (!skipKey.equals(lastGridSkip)) {
+                lastGridSkip = skipKey;
+                skippedByGrid++;
+            }
+            return;
+        }
+        // posizione già coperta: nessun comando (e la richiesta in volo continua)
+        if (predicted == null && isCovered(fallbackX, fallbackZ, dimension)) {
+            skippedCovered++;
+            lastChunkX = chunkX;
+            lastChunkZ = chunkZ;
+            return;
+        }
         if (inFlight != null && (chunkX != inFlight.chunkX || chunkZ != inFlight.chunkZ)) {
             cancelInFlightForNewChunk();
         }
@@ -263,9 +539,8 @@ public class MappingController {
             return;
         }
 
-        int fallbackX = client.player.getBlockPos().getX();
-        int fallbackZ = client.player.getBlockPos().getZ();
-        PlotRequest req = new PlotRequest(++requestSeq, fallbackX, fallbackZ, chunkX, chunkZ, 1, true);
+        PlotRequest req = new PlotRequest(++requestSeq, fallbackX, fallbackZ, chunkX, chunkZ, 1, true,
+                predicted != null ? predicted.plotId : null);
         if (queue.isEmpty()) {
             queue.add(req);
         } else {
@@ -276,31 +551,92 @@ public class MappingController {
         lastChunkZ = chunkZ;
     }
 
+    private String currentDimension(MinecraftClient client) {
+        String dimension = null;
+        if (client.world != null && client.world.getRegistryKey() != null) {
+            dimension = client.world.getRegistryKey().getValue().getPath();
+        }
+        AppConfig cfg = ConfigManager.get();
+        if (dimension == null || dimension.isBlank()) {
+            dimension = cfg != null ? cfg.dimensionDefault : null;
+        }
+        return dimension;
+    }
+
+    /**
+     * Filtro di ammissione: la posizione è coperta se un plot già letto (cache o ultimi letti)
+     * sta entro metà plotFootprint. Mezzo lato tiene il margine verso i plot vicini non mappati.
+     * In ri-scansione non è coperto nulla.
+     */
+    private boolean isCovered(int x, int z, String dimension) {
+        AppConfig cfg = ConfigManager.get();
+        if (cfg != null && cfg.rescanKnownPlots) return false;
+        int radius = cfg != null && cfg.plotFootprint > 0 ? cfg.plotFootprint / 2 : 0;
+        if (radius <= 0) return false;
+        long r2 = (long) radius * radius;
+        for (int i = 0; i < recentCount; i++) {
+            if (recentDim[i] != null && dimension != null && !recentDim[i].equals(dimension)) continue;
+            long dx = (long) recentX[i] - x;
+            long dz = (long) recentZ[i] - z;
+            if (dx * dx + dz * dz <= r2) return true;
+        }
+        return PlotCacheManager.nearestWithin(x, z, dimension, radius) != null;
+    }
+
+    /** Plot già letto: in cache o tra gli ultimi letti (invio in coda, cattura offline). */
+    private boolean isKnownPlot(String plotId) {
+        if (PlotCacheManager.isPlotMapped(plotId)) return true;
+        for (int i = 0; i < recentCount; i++) {
+            if (plotId.equals(recentIds[i])) return true;
+        }
+        return false;
+    }
+
+    /** Plot già in richiesta (in volo o in coda): i chunk dello stesso plot si accodano a quella. */
+    private boolean isRequested(String plotId) {
+        if (inFlight != null && plotId.equals(inFlight.predictedPlotId)) return true;
+        for (PlotRequest req : queue) {
+            if (plotId.equals(req.predictedPlotId)) return true;
+        }
+        return false;
+    }
+
+    /** Prima calibrazione della dimensione dai plot in cache vicini (se la cache è già caricata). */
+    private void seedGridIfNeeded(String dimension, int x, int z) {
+        if (PlotGridCalibrator.isSeeded(dimension) || PlotCacheManager.size() == 0) return;
+        PlotGridCalibrator.seed(dimension, PlotCacheManager.nearest(x, z, dimension, GRID_SEED_PLOTS, null));
+    }
+
+    private void rememberRecent(PlotInfo info) {
+        recentX[recentNext] = info.coordX;
+        recentZ[recentNext] = info.coordZ;
+        recentDim[recentNext] = info.dimension;
+        recentIds[recentNext] = info.plotId != null ? info.plotId.trim() : null;
+        recentNext = (recentNext + 1) % RECENT_PLOTS;
+        if (recentCount < RECENT_PLOTS) recentCount++;
+    }
+
     private void cancelInFlightForNewChunk() {
         parser.forceReset();
         clearPendingChunk(inFlight);
         inFlight = null;
     }
 
-    private void startNextIfReady(MinecraftClient client, long now, long cooldownMs) {
+    private void startNextIfReady(MinecraftClient client, long now, long cooldownMs, boolean throttled) {
         if (inFlight != null) return;
         if (queue.isEmpty()) return;
-        if (!queue.peek().priority && now - lastCommandAtMs < cooldownMs) return;
+        if ((!queue.peek().priority || throttled) && now - lastCommandAtMs < cooldownMs) return;
 
         PlotRequest req = queue.poll();
         if (req == null) return;
         inFlight = req;
         inFlight.sentAtMs = now;
         String cmd = ConfigManager.get() != null ? ConfigManager.get().plotInfoCommand : "plot info";
-        String dimension = null;
-        if (client.world != null && client.world.getRegistryKey() != null) {
-            dimension = client.world.getRegistryKey().getValue().getPath();
-        }
-        AppConfig cfg = ConfigManager.get();
-        if (dimension == null || dimension.isBlank()) {
-            dimension = cfg != null ? cfg.dimensionDefault : null;
+        if (client.player != null) {
+            req.sentX = client.player.getBlockPos().getX();
+            req.sentZ = client.player.getBlockPos().getZ();
         }
-        parser.beginRequest(req.requestId, req.fallbackX, req.fallbackZ, dimension);
+        parser.beginRequest(req.requestId, req.fallbackX, req.fallbackZ, currentDimension(client));
         sendCommand(client, cmd);
         lastCommandAtMs = now;
     }
@@ -313,7 +649,8 @@ public class MappingController {
                 failed.chunkX,
                 failed.chunkZ,
                 failed.attempt + 1,
-                false
+                false,
+                failed.predictedPlotId
         );
         queue.addFirst(retry);
         HudOverlay.showBadge("⚠️ Timeout plot info, retry " + retry.attempt + "/" + MAX_ATTEMPTS, HudOverlay.Badge.NEUTRAL);
@@ -341,7 +678,7 @@ public class MappingController {
         }
     }
 
-    private void handleSubmitResult(PlotInfo info, SubmitPlotClient.SubmitResult result, int attempt) {
+    private void handleSubmitResult(PlotInfo info, SubmitPlotClient.SubmitResult result, String giveUpReason) {
         String plotLabel = formatPlotLabel(info);
         if (result == null) {
             HudOverlay.showBadge("❌ Submit fallito per " + plotLabel + ": NETWORK_ERROR (nessuna risposta)", HudOverlay.Badge.ERROR);
@@ -363,7 +700,7 @@ public class MappingController {
                 HudOverlay.showBadge("❌ Submit fallito per " + plotLabel + ": sessione non trovata o non attiva.", HudOverlay.Badge.ERROR);
                 return;
             }
-            String retryNote = attempt >= SUBMIT_MAX_ATTEMPTS ? " (tentativi esauriti)" : "";
+            String retryNote = giveUpReason != null ? " (" + giveUpReason + ")" : "";
             HudOverlay.showBadge("❌ Submit fallito per " + plotLabel + ": " + detail + retryNote, HudOverlay.Badge.ERROR);
             return;
         }
@@ -412,7 +749,7 @@ public class MappingController {
         if (now - lastSubmitRetryWarnAtMs < SUBMIT_RETRY_WARN_COOLDOWN_MS) return;
         lastSubmitRetryWarnAtMs = now;
         String reason = (detail == null || detail.isBlank()) ? "errore sconosciuto" : detail;
-        String message = "⚠️ Invio fallito (" + reason + "). Riprovo " + (task.attempt + 1) + "/" + SUBMIT_MAX_ATTEMPTS
+        String message = "⚠️ Invio fallito (" + reason + "). Riprovo " + (task.attempt + 1) + "/" + RetryPolicy.SUBMIT.maxAttempts()
                 + " per " + formatPlotLabel(task.info) + " tra " + (delayMs / 1000) + "s.";
         dispatchToMainThread(() -> HudOverlay.showBadge(message, HudOverlay.Badge.NEUTRAL));
     }
@@ -443,34 +780,87 @@ public class MappingController {
         }
     }
 
-    private static final class SubmitTask {
+    private static final class SubmitTask implements Delayed {
         private final PlotInfo info;
         private int attempt;
         private final String key;
+        // plot già inviato con dati diversi: va come aggiornamento
+        private final boolean update;
+        // stessa chiave per tutti i tentativi e dopo un riavvio (salvata nel WAL)
+        private final String idempotencyKey;
+        // accodato da /mappatura sync: avanzamento cumulativo invece di un badge per plot
+        private boolean sync;
+        // plot_data serializzato al primo invio e riusato identico nei retry
+        private byte[] encodedPlot;
+        // inizio della scadenza per RetryPolicy.SUBMIT (0 = non ancora inviato)
+        private volatile long firstAttemptAtMs;
+        // prossimo tentativo (epoch ms) e ultimo errore: ispezionabili da /mappatura debug
+        private volatile long nextAttemptAtMs;
+        private volatile String lastError;
+
+        private SubmitTask(PlotInfo info, boolean update) {
+            this(info, update, SubmitQueueStorage.newIdempotencyKey());
+        }
 
-        private SubmitTask(PlotInfo info) {
+        /** update e idempotency key espliciti: sync, e ripristino da WAL/spill/falliti (valori salvati col task). */
+        private SubmitTask(PlotInfo info, boolean update, String idempotencyKey) {
             this.info = info;
             this.attempt = 1;
             this.key = buildSubmitKey(info);
+            this.update = update;
+            this.idempotencyKey = idempotencyKey != null ? idempotencyKey : SubmitQueueStorage.newIdempotencyKey();
+        }
+
+        private byte[] encodedPlot() {
+            if (encodedPlot == null) {
+                encodedPlot = SubmitPayloadEncoder.encodePlot(info, ConfigManager.get(), update, idempotencyKey);
+            }
+            return encodedPlot;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(nextAttemptAtMs - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other instanceof SubmitTask task) {
+                return Long.compare(nextAttemptAtMs, task.nextAttemptAtMs);
+            }
+            return Long.compare(getDelay(TimeUnit.MILLISECONDS), other.getDelay(TimeUnit.MILLISECONDS));
         }
     }
 
+    /**
+     * Coda di invio: un solo thread dispatcher preleva i task (anche in batch)
+     * e li invia con SubmitPlotClient.submitEncodedFuture/submitBatchEncodedFuture.
+     * Il numero di richieste contemporanee è deciso da AdaptiveConcurrencyLimiter (AIMD).
+     *
+     * I retry non tornano subito in coda: aspettano in retryQueue (DelayQueue ordinata
+     * per nextAttemptAtMs) e un thread scheduler li rimette in coda solo quando scadono.
+     */
     private final class SubmitPlotQueue implements Runnable {
         private final BlockingQueue<SubmitTask> queue = new LinkedBlockingQueue<>();
+        private final DelayQueue<SubmitTask> retryQueue = new DelayQueue<>();
         private final ConcurrentHashMap<String, SubmitTask> pendingByKey = new ConcurrentHashMap<>();
+        // chiavi dei task parcheggiati su disco (oltre SUBMIT_MEMORY_WINDOW)
+        private final Set<String> spilledKeys = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean refilling = new AtomicBoolean(false);
+        private final AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter();
+        // false finché il dispatcher non ha riletto il WAL (anche molto grande) in background
+        private volatile boolean restored = false;
+        // in pausa (disconnessione/uscita): il dispatcher resta fermo, i task restano nel WAL
+        private final Object pauseLock = new Object();
+        private volatile boolean paused = false;
 
         private SubmitPlotQueue() {
-            List<PlotInfo> pending = SubmitQueueStorage.loadPending();
-            if (!pending.isEmpty()) {
-                for (PlotInfo info : pending) {
-                    enqueueInternal(new SubmitTask(info), false);
-                }
-            }
-            for (int i = 1; i <= SUBMIT_WORKERS; i++) {
-                Thread worker = new Thread(this, "SMD-SubmitQueue-" + i);
-                worker.setDaemon(true);
-                worker.start();
-            }
+            Thread dispatcher = new Thread(this, "SMD-SubmitQueue");
+            dispatcher.setDaemon(true);
+            dispatcher.start();
+            Thread scheduler = new Thread(this::runRetryScheduler, "SMD-SubmitRetry");
+            scheduler.setDaemon(true);
+            scheduler.start();
         }
 
         private void enqueue(SubmitTask task) {
@@ -480,18 +870,74 @@ public class MappingController {
 
         private void enqueueInternal(SubmitTask task, boolean persist) {
             if (task == null || task.info == null) return;
+            if (spilledKeys.contains(task.key)) return;
+            if (pendingByKey.size() >= SUBMIT_MEMORY_WINDOW && !pendingByKey.containsKey(task.key)) {
+                // finestra piena: il task va nel WAL e su disco, non in memoria
+                if (!spilledKeys.add(task.key)) return;
+                if (persist) SubmitQueueStorage.appendEnqueue(task.key, task.info, task.update, task.idempotencyKey);
+                SubmitQueueStorage.spill(task.info, task.update, task.idempotencyKey);
+                return;
+            }
             SubmitTask existing = pendingByKey.putIfAbsent(task.key, task);
             if (existing != null) return;
+            RetryPolicy.recordFirstAttempt();
             queue.offer(task);
-            if (persist) persistPending();
+            if (persist) SubmitQueueStorage.appendEnqueue(task.key, task.info, task.update, task.idempotencyKey);
+        }
+
+        /** Ripristina gli invii pendenti della sessione precedente (thread dispatcher). */
+        private void restorePending() {
+            SubmitQueueStorage.resetSpill();
+            List<SubmitQueueStorage.Pending> pending = SubmitQueueStorage.loadPending();
+            for (SubmitQueueStorage.Pending p : pending) {
+                enqueueInternal(new SubmitTask(p.info, p.update, p.idempotencyKey), false);
+            }
+            restored = true;
+        }
+
+        /** Invii in attesa: in memoria + parcheggiati su disco. */
+        private int backlog() {
+            return pendingByKey.size() + spilledKeys.size();
+        }
+
+        /** Riporta in memoria un blocco di task parcheggiati quando la finestra si libera. */
+        private void maybeRefill() {
+            if (spilledKeys.isEmpty()) return;
+            if (pendingByKey.size() > SUBMIT_MEMORY_WINDOW - SUBMIT_SPILL_REFILL) return;
+            if (!refilling.compareAndSet(false, true)) return;
+            SubmitQueueStorage.pollSpilled(SUBMIT_SPILL_REFILL).whenComplete((spilled, ex) -> {
+                if (spilled == null || spilled.isEmpty()) {
+                    // spill perso o illeggibile: quei plot restano nel WAL e ripartono al prossimo avvio
+                    spilledKeys.clear();
+                } else {
+                    for (SubmitQueueStorage.Pending p : spilled) {
+                        SubmitTask task = new SubmitTask(p.info, p.update, p.idempotencyKey);
+                        spilledKeys.remove(task.key);
+                        enqueueInternal(task, false);
+                    }
+                }
+                refilling.set(false);
+                if (spilled != null && !spilled.isEmpty()) maybeRefill();
+            });
         }
 
         @Override
         public void run() {
+            restorePending();
             while (true) {
                 try {
-                    SubmitTask task = queue.take();
-                    handleSubmitTask(task);
+                    SubmitTask first = queue.take();
+                    List<SubmitTask> batch = collectBatch(first);
+                    while (true) {
+                        awaitResumed();
+                        awaitSubmitAllowed();
+                        limiter.acquire();
+                        // lo slot preso conta già come "in volo" per drain(): se pause() è arrivata
+                        // nel frattempo si rilascia e si aspetta, così nulla parte dopo il drain
+                        if (!paused) break;
+                        limiter.release(0L, AdaptiveConcurrencyLimiter.Outcome.IGNORE);
+                    }
+                    dispatch(batch);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     return;
@@ -499,47 +945,269 @@ public class MappingController {
             }
         }
 
-        private void handleSubmitTask(SubmitTask task) throws InterruptedException {
-            while (!canSubmitNow(false)) {
-                String reason = getSubmitBlockReason();
-                notifySubmitBlocked(reason != null ? reason : "configurazione incompleta");
-                Thread.sleep(SUBMIT_RETRY_BASE_DELAY_MS);
+        private void pause() {
+            paused = true;
+        }
+
+        /**
+         * Con la coda già in pausa, aspetta gli invii in volo fino a timeoutMs, poi porta su disco
+         * il WAL (ack compresi). Ritorna false se qualcosa era ancora in volo alla scadenza:
+         * quei task restano pendenti e ripartono alla prossima sessione.
+         */
+        private boolean drain(long timeoutMs) {
+            long deadline = System.currentTimeMillis() + Math.max(0L, timeoutMs);
+            boolean idle = limiter.awaitIdle(timeoutMs);
+            long left = Math.max(0L, deadline - System.currentTimeMillis());
+            boolean flushed = SubmitQueueStorage.flush(Math.max(left, SUBMIT_DRAIN_MIN_FLUSH_MS));
+            System.out.println("[SMD][QUEUE] Drain " + (idle ? "completato" : "scaduto con " + limiter.inFlight() + " in volo")
+                    + (flushed ? ", WAL su disco" : ", WAL non confermato") + " (" + pendingByKey.size() + " pendenti)");
+            return idle && flushed;
+        }
+
+        private void resume() {
+            synchronized (pauseLock) {
+                paused = false;
+                pauseLock.notifyAll();
+            }
+        }
+
+        private void awaitResumed() throws InterruptedException {
+            synchronized (pauseLock) {
+                while (paused) pauseLock.wait();
             }
-            SubmitPlotClient.SubmitResult result = SubmitPlotClient.submitBlocking(task.info);
-            if (shouldRetry(result) && task.attempt < SUBMIT_MAX_ATTEMPTS) {
-                long delay = SUBMIT_RETRY_BASE_DELAY_MS * (1L << Math.max(0, task.attempt - 1));
-                notifySubmitRetry(task, buildSubmitFailureDetail(result), delay);
-                Thread.sleep(delay);
-                task.attempt++;
-                queue.offer(task);
+        }
+
+        /** Sposta in coda i task il cui nextAttemptAtMs è scaduto. */
+        private void runRetryScheduler() {
+            while (true) {
+                try {
+                    SubmitTask due = retryQueue.take();
+                    queue.offer(due);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Raccoglie altri task pronti insieme a {@code first}.
+         * Dimensione e attesa si adattano alla profondità della coda:
+         * coda vuota -> invio singolo immediato, coda lunga -> batch pieno senza attesa,
+         * in mezzo -> breve attesa per riempire il batch.
+         */
+        private List<SubmitTask> collectBatch(SubmitTask first) throws InterruptedException {
+            List<SubmitTask> batch = new ArrayList<>();
+            batch.add(first);
+            if (!SubmitPlotClient.isBatchSupported()) return batch;
+
+            int depth = queue.size() + 1;
+            if (depth <= 1) return batch;
+
+            int target = Math.min(SUBMIT_BATCH_MAX, depth);
+            queue.drainTo(batch, target - batch.size());
+            if (batch.size() >= target || depth >= SUBMIT_BATCH_MAX) return batch;
+
+            long linger = SUBMIT_BATCH_MAX_LINGER_MS * (SUBMIT_BATCH_MAX - depth) / SUBMIT_BATCH_MAX;
+            long deadline = System.currentTimeMillis() + linger;
+            while (batch.size() < target) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) break;
+                SubmitTask next = queue.poll(remaining, TimeUnit.MILLISECONDS);
+                if (next == null) break;
+                batch.add(next);
+                queue.drainTo(batch, target - batch.size());
+            }
+            return batch;
+        }
+
+        private void awaitSubmitAllowed() throws InterruptedException {
+            while (true) {
+                if (!canSubmitNow(false)) {
+                    String reason = getSubmitBlockReason();
+                    notifySubmitBlocked(reason != null ? reason : "configurazione incompleta");
+                } else if (!SubmitPlotClient.isBackendAvailable()) {
+                    // circuito aperto: si aspetta la probe invece di consumare tentativi
+                    notifySubmitBlocked("backend non raggiungibile");
+                } else {
+                    return;
+                }
+                Thread.sleep(SUBMIT_BLOCKED_POLL_MS);
+            }
+        }
+
+        private void dispatch(List<SubmitTask> batch) {
+            long startedAt = System.currentTimeMillis();
+            for (SubmitTask task : batch) {
+                if (task.firstAttemptAtMs == 0L) task.firstAttemptAtMs = startedAt;
+            }
+            if (batch.size() == 1) {
+                SubmitTask task = batch.get(0);
+                SubmitPlotClient.submitEncodedFuture(task.encodedPlot(), task.idempotencyKey).whenComplete((result, ex) -> {
+                    // prima l'ack nel WAL, poi lo slot: drain() considera finito solo ciò che è registrato
+                    SubmitPlotClient.SubmitResult r = ex != null ? null : result;
+                    onTaskResult(task, r);
+                    limiter.release(System.currentTimeMillis() - startedAt, classify(r));
+                });
+                return;
+            }
+
+            List<byte[]> plots = new ArrayList<>(batch.size());
+            List<String> keys = new ArrayList<>(batch.size());
+            for (SubmitTask task : batch) {
+                plots.add(task.encodedPlot());
+                keys.add(task.idempotencyKey);
+            }
+
+            SubmitPlotClient.submitBatchEncodedFuture(plots, keys).whenComplete((results, ex) -> {
+                if (ex != null) {
+                    // nessuna risposta utilizzabile: un tentativo fallito per ogni task (retry con backoff)
+                    System.out.println("[SMD][QUEUE] Invio batch fallito: " + ex);
+                    for (SubmitTask task : batch) onTaskResult(task, null);
+                    limiter.release(System.currentTimeMillis() - startedAt, AdaptiveConcurrencyLimiter.Outcome.OVERLOAD);
+                    return;
+                }
+                if (results == null) {
+                    // endpoint batch non disponibile (già segnato) o gzip rifiutato: stessi task
+                    // uno alla volta nello slot già occupato, ognuno con il suo tentativo contato
+                    sendSequentially(batch, 0, startedAt);
+                    return;
+                }
+                AdaptiveConcurrencyLimiter.Outcome outcome = AdaptiveConcurrencyLimiter.Outcome.OK;
+                for (SubmitPlotClient.SubmitResult r : results) {
+                    if (classify(r) == AdaptiveConcurrencyLimiter.Outcome.OVERLOAD) {
+                        outcome = AdaptiveConcurrencyLimiter.Outcome.OVERLOAD;
+                        break;
+                    }
+                }
+                for (int i = 0; i < batch.size(); i++) {
+                    onTaskResult(batch.get(i), results.get(i));
+                }
+                limiter.release(System.currentTimeMillis() - startedAt, outcome);
+            });
+        }
+
+        /** Ripiego del batch: invii singoli in fila, lo slot del limiter si libera dopo l'ultimo. */
+        private void sendSequentially(List<SubmitTask> tasks, int index, long startedAt) {
+            if (index >= tasks.size()) {
+                limiter.release(System.currentTimeMillis() - startedAt, AdaptiveConcurrencyLimiter.Outcome.IGNORE);
                 return;
             }
+            SubmitTask task = tasks.get(index);
+            SubmitPlotClient.submitEncodedFuture(task.encodedPlot(), task.idempotencyKey).whenComplete((result, ex) -> {
+                onTaskResult(task, ex != null ? null : result);
+                sendSequentially(tasks, index + 1, startedAt);
+            });
+        }
+
+        /** 429/5xx/rete = sovraccarico; gli altri errori (403, 404...) non dicono nulla sul carico. */
+        private AdaptiveConcurrencyLimiter.Outcome classify(SubmitPlotClient.SubmitResult result) {
+            if (result == null) return AdaptiveConcurrencyLimiter.Outcome.OVERLOAD;
+            if (result.httpStatus == 429 || result.httpStatus >= 500) return AdaptiveConcurrencyLimiter.Outcome.OVERLOAD;
+            if (!result.success && result.error != null && result.error.startsWith("NETWORK_ERROR")) {
+                return AdaptiveConcurrencyLimiter.Outcome.OVERLOAD;
+            }
+            if (result.success || result.alreadyMapped) return AdaptiveConcurrencyLimiter.Outcome.OK;
+            return AdaptiveConcurrencyLimiter.Outcome.IGNORE;
+        }
+
+        private void onTaskResult(SubmitTask task, SubmitPlotClient.SubmitResult result) {
+            long delay = completeTask(task, result);
+            if (delay >= 0) {
+                // il ritardo non occupa thread né slot della finestra
+                task.nextAttemptAtMs = System.currentTimeMillis() + delay;
+                retryQueue.offer(task);
+            }
+        }
+
+        /**
+         * Applica l'esito di un invio al task.
+         * Ritorna il ritardo prima del nuovo tentativo, oppure -1 se il task è concluso.
+         */
+        private long completeTask(SubmitTask task, SubmitPlotClient.SubmitResult result) {
+            if (shouldRetry(result) && SubmitPlotClient.isCircuitOpen()) {
+                // backend giù: il task torna in coda senza consumare un tentativo
+                // e il dispatcher lo trattiene finché il circuito non si richiude;
+                // la scadenza riparte dal prossimo invio (il tempo di blackout non conta)
+                task.lastError = buildSubmitFailureDetail(result);
+                task.firstAttemptAtMs = 0L;
+                return 0L;
+            }
+            String giveUpReason = null;
+            if (shouldRetry(result)) {
+                RetryPolicy.Decision decision = RetryPolicy.SUBMIT.decide(task.attempt, task.firstAttemptAtMs);
+                task.lastError = buildSubmitFailureDetail(result);
+                if (decision.retry) {
+                    // budget retry finito: si aspetta di più, ma il tentativo non si consuma
+                    if (decision.countsAttempt) {
+                        notifySubmitRetry(task, task.lastError, decision.delayMs);
+                        task.attempt++;
+                    }
+                    return decision.delayMs;
+                }
+                giveUpReason = decision.reason;
+            }
             if (result != null && (result.success || result.alreadyMapped)) {
                 PlotCacheManager.record(task.info);
                 pendingByKey.remove(task.key);
-                persistPending();
+                SubmitQueueStorage.appendAck(task.key);
+            } else {
+                // fallito definitivamente: fuori dalla coda pendente, nei falliti con il motivo
+                String detail = buildSubmitFailureDetail(result);
+                DeadLetterStore.add(task.key, task.info, task.update, task.idempotencyKey,
+                        giveUpReason != null ? detail + " (" + giveUpReason + ")" : detail,
+                        result != null ? result.httpStatus : 0, task.attempt);
+                pendingByKey.remove(task.key);
+                SubmitQueueStorage.appendAck(task.key);
+            }
+            maybeRefill();
+            if (task.sync) {
+                onSyncTaskDone(result != null && (result.success || result.alreadyMapped));
+                return -1L;
             }
-            int attemptSnapshot = task.attempt;
-            dispatchToMainThread(() -> handleSubmitResult(task.info, result, attemptSnapshot));
+            String reasonSnapshot = giveUpReason;
+            dispatchToMainThread(() -> handleSubmitResult(task.info, result, reasonSnapshot));
+            return -1L;
+        }
+
+        private List<String> describe() {
+            List<String> out = new ArrayList<>();
+            out.add("coda " + queue.size() + ", in retry " + retryQueue.size()
+                    + ", pendenti " + pendingByKey.size() + (restored ? "" : " (ripristino da disco in corso)")
+                    + (spilledKeys.isEmpty() ? "" : ", su disco " + spilledKeys.size())
+                    + (paused ? ", IN PAUSA" : ""));
+            out.add("concorrenza: " + limiter.describe());
+            out.add("retry: " + RetryPolicy.SUBMIT + ", " + RetryPolicy.describeBudget());
+            out.add("falliti: " + DeadLetterStore.size() + " (/mappatura falliti)");
+            out.add("cache: " + PlotCacheManager.size() + " plot, invariati saltati " + skippedUnchanged
+                    + ", chunk già coperti " + skippedCovered);
+            out.add("griglia: " + PlotGridCalibrator.describe(currentDimension(MinecraftClient.getInstance()))
+                    + ", comandi risparmiati " + skippedByGrid);
+            out.add("offline: " + (isOfflineCapture() ? "ATTIVO, " : "") + OfflineCaptureStore.size() + " da sincronizzare"
+                    + (syncTotal.get() > 0 ? ", sync " + syncDone.get() + "/" + syncTotal.get() : ""));
+
+            List<SubmitTask> retries = new ArrayList<>(retryQueue);
+            retries.sort(null);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < Math.min(SUBMIT_DEBUG_RETRY_LINES, retries.size()); i++) {
+                SubmitTask task = retries.get(i);
+                long inMs = Math.max(0L, task.nextAttemptAtMs - now);
+                out.add(formatPlotLabel(task.info) + " tentativo " + task.attempt + "/" + RetryPolicy.SUBMIT.maxAttempts()
+                        + " tra " + (inMs / 1000) + "s"
+                        + (task.lastError != null ? " (" + task.lastError + ")" : ""));
+            }
+            return out;
         }
 
         private boolean shouldRetry(SubmitPlotClient.SubmitResult result) {
             if (result == null) return true;
             if (result.success) return false;
             if (result.error != null && result.error.startsWith("NETWORK_ERROR")) return true;
-            return result.httpStatus == 429 || result.httpStatus >= 500;
-        }
-
-        private void persistPending() {
-            List<PlotInfo> snapshot = new ArrayList<>();
-            for (SubmitTask task : pendingByKey.values()) {
-                if (task != null && task.info != null) snapshot.add(task.info);
-            }
-            SubmitQueueStorage.savePending(snapshot);
+            return RetryPolicy.isRetryableStatus(result.httpStatus);
         }
     }
 
-    private static String buildSubmitKey(PlotInfo info) {
+    static String buildSubmitKey(PlotInfo info) {
         if (info == null) return "";
         return info.plotId + "|" + info.coordX + "|" + info.coordZ;
     }
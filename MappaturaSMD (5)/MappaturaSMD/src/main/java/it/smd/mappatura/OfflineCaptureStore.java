@@ -0,0 +1,303 @@
+package it.smd.mappatura;
+
+import com.google.gson.Gson;
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plot catturati in modalità offline (/mappatura offline), in attesa di /mappatura sync.
+ *
+ * - Ogni cattura porta codice sessione e server correnti: un plot per (sessione, server, plotId).
+ *   Una nuova cattura con gli stessi dati non scrive nulla, con dati diversi sostituisce
+ *   la precedente (nuova idempotency key). La sync invia solo le catture della sessione e
+ *   del server attuali; le altre restano in attesa. Le catture fatte senza codice sessione
+ *   (cattura offline prima di averlo inserito) vengono adottate dalla prima sessione che
+ *   sincronizza su quel server.
+ * - mappaturasmd_offline.jsonl: record "C" (cattura) e "D" (passato alla coda invii)
+ *   appesi in coda, scritti a blocchi sul thread SMD-IO; compattato al caricamento.
+ * - La sync sposta i plot nel WAL della coda invii: da lì in poi valgono retry,
+ *   batch e ripristino dopo un riavvio della coda normale.
+ */
+public final class OfflineCaptureStore {
+    private static final Gson GSON = new Gson();
+    private static final String FILE_NAME = "mappaturasmd_offline.jsonl";
+    private static final String TMP_FILE_NAME = "mappaturasmd_offline.jsonl.tmp";
+    private static final String OP_CAPTURE = "C";
+    private static final String OP_DONE = "D";
+    private static final long FLUSH_COALESCE_MS = 1_000L;
+
+    /** key = sessione@server|plotId, ordine = cattura */
+    private static final Map<String, Captured> ENTRIES = new LinkedHashMap<>();
+    private static List<String> unflushed = new ArrayList<>();
+
+    private OfflineCaptureStore() {}
+
+    public static final class Captured {
+        public String sessionCode;
+        public String serverKey;
+        public String plotId;
+        public int coordX;
+        public int coordZ;
+        public String dimension;
+        public String proprietario;
+        public String ultimoAccessoIso;
+        public long capturedAtMs;
+        public long fingerprint;
+        public String idempotencyKey;
+
+        public PlotInfo toPlotInfo() {
+            return new PlotInfo(plotId, coordX, coordZ, dimension, proprietario, ultimoAccessoIso);
+        }
+    }
+
+    private static final class Record {
+        private String op;
+        private String key;
+        private Captured plot;
+    }
+
+    private static String key(String sessionCode, String serverKey, String plotId) {
+        return sessionCode + "@" + serverKey + "|" + plotId;
+    }
+
+    private static String key(Captured c) {
+        return key(c.sessionCode, c.serverKey, c.plotId);
+    }
+
+    private static boolean isValid(Captured c) {
+        return c != null && c.plotId != null && c.sessionCode != null && c.serverKey != null;
+    }
+
+    private static String currentSessionCode() {
+        AppConfig cfg = ConfigManager.get();
+        return cfg != null && cfg.sessionCode != null ? cfg.sessionCode.trim() : "";
+    }
+
+    /** Carica il file in background. Le catture arrivate prima della fine del caricamento restano. */
+    public static void init() {
+        DiskExecutor.run("offline", () -> {
+            Map<String, Captured> fromDisk = new LinkedHashMap<>();
+            int records = 0;
+            Path file = FabricLoader.getInstance().getConfigDir().resolve(FILE_NAME);
+            if (Files.exists(file)) {
+                try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.isBlank()) continue;
+                        Record record;
+                        try {
+                            record = GSON.fromJson(line, Record.class);
+                        } catch (Exception e) {
+                            // ultima riga troncata da una chiusura improvvisa: si ignora
+                            continue;
+                        }
+                        records++;
+                        if (record == null) continue;
+                        if (OP_CAPTURE.equals(record.op) && isValid(record.plot)) {
+                            String key = key(record.plot);
+                            fromDisk.remove(key);
+                            fromDisk.put(key, record.plot);
+                        } else if (OP_DONE.equals(record.op) && record.key != null) {
+                            fromDisk.remove(record.key);
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println("[SMD][OFFLINE] Lettura " + FILE_NAME + " fallita: " + e.getMessage());
+                }
+            }
+            List<String> snapshot;
+            synchronized (OfflineCaptureStore.class) {
+                // le catture di questa sessione sono più recenti del file
+                Map<String, Captured> merged = new LinkedHashMap<>(fromDisk);
+                for (Map.Entry<String, Captured> e : ENTRIES.entrySet()) {
+                    merged.remove(e.getKey());
+                    merged.put(e.getKey(), e.getValue());
+                }
+                ENTRIES.clear();
+                ENTRIES.putAll(merged);
+                if (records <= ENTRIES.size() && unflushed.isEmpty()) snapshot = null;
+                else {
+                    snapshot = snapshotLines();
+                    unflushed = new ArrayList<>();
+                }
+            }
+            if (snapshot != null) writeCompacted(snapshot);
+            if (!fromDisk.isEmpty()) {
+                System.out.println("[SMD][OFFLINE] " + fromDisk.size() + " plot offline da sincronizzare.");
+            }
+        });
+    }
+
+    /**
+     * Registra un plot catturato offline per la sessione e il server correnti.
+     * Ritorna false se identico a quello già salvato.
+     */
+    public static boolean capture(PlotInfo info) {
+        String sessionCode = currentSessionCode();
+        String serverKey = PlotCacheManager.currentServerKey();
+        return capture(info, sessionCode, serverKey);
+    }
+
+    /** Come capture(info) con sessione e server espliciti. */
+    static synchronized boolean capture(PlotInfo info, String sessionCode, String serverKey) {
+        if (info == null || info.plotId == null || info.plotId.isBlank()) return false;
+        String plotId = info.plotId.trim();
+        String key = key(sessionCode, serverKey, plotId);
+        long fp = PlotCacheManager.fingerprint(info);
+        Captured existing = ENTRIES.get(key);
+        if (existing != null && existing.fingerprint == fp) return false;
+
+        Captured c = new Captured();
+        c.sessionCode = sessionCode;
+        c.serverKey = serverKey;
+        c.plotId = plotId;
+        c.coordX = info.coordX;
+        c.coordZ = info.coordZ;
+        c.dimension = info.dimension;
+        c.proprietario = info.proprietario;
+        c.ultimoAccessoIso = info.ultimoAccessoIso;
+        c.capturedAtMs = System.currentTimeMillis();
+        c.fingerprint = fp;
+        c.idempotencyKey = SubmitQueueStorage.newIdempotencyKey();
+
+        ENTRIES.remove(key);
+        ENTRIES.put(key, c);
+        Record record = new Record();
+        record.op = OP_CAPTURE;
+        record.plot = c;
+        append(GSON.toJson(record));
+        return true;
+    }
+
+    /** Copia dei plot da sincronizzare per sessione e server, dal più vecchio al più recente. */
+    public static synchronized List<Captured> list(String sessionCode, String serverKey) {
+        List<Captured> out = new ArrayList<>();
+        for (Captured c : ENTRIES.values()) {
+            if (c.sessionCode.equals(sessionCode) && c.serverKey.equals(serverKey)) out.add(c);
+        }
+        return out;
+    }
+
+    /** Plot da sincronizzare per la sessione e il server correnti (vedi listForSync). */
+    public static List<Captured> listCurrent() {
+        return listForSync(currentSessionCode(), PlotCacheManager.currentServerKey());
+    }
+
+    /**
+     * Plot da sincronizzare per sessione e server. Prima adotta le catture dello stesso server
+     * fatte senza codice sessione: passano alla sessione indicata (record D + C nel file),
+     * a meno che quella non abbia già una cattura più recente dello stesso plot.
+     */
+    static synchronized List<Captured> listForSync(String sessionCode, String serverKey) {
+        if (sessionCode != null && !sessionCode.isBlank()) {
+            for (Captured c : new ArrayList<>(ENTRIES.values())) {
+                if (!c.sessionCode.isEmpty() || !c.serverKey.equals(serverKey)) continue;
+                String oldKey = key(c);
+                ENTRIES.remove(oldKey);
+                Record done = new Record();
+                done.op = OP_DONE;
+                done.key = oldKey;
+                append(GSON.toJson(done));
+
+                String newKey = key(sessionCode, serverKey, c.plotId);
+                Captured existing = ENTRIES.get(newKey);
+                if (existing != null && existing.capturedAtMs >= c.capturedAtMs) continue;
+                c.sessionCode = sessionCode;
+                ENTRIES.remove(newKey);
+                ENTRIES.put(newKey, c);
+                Record adopted = new Record();
+                adopted.op = OP_CAPTURE;
+                adopted.plot = c;
+                append(GSON.toJson(adopted));
+            }
+        }
+        return list(sessionCode, serverKey);
+    }
+
+    /**
+     * Toglie i plot passati alla coda invii. Solo se la cattura è ancora quella sincronizzata:
+     * una ricattura arrivata nel frattempo con dati nuovi resta da inviare.
+     */
+    public static synchronized void markSynced(Collection<Captured> synced) {
+        for (Captured c : synced) {
+            String key = key(c);
+            if (ENTRIES.get(key) != c) continue;
+            ENTRIES.remove(key);
+            Record record = new Record();
+            record.op = OP_DONE;
+            record.key = key;
+            append(GSON.toJson(record));
+        }
+    }
+
+    public static synchronized int size() {
+        return ENTRIES.size();
+    }
+
+    private static void append(String line) {
+        unflushed.add(line);
+        DiskExecutor.coalesce("offline", FLUSH_COALESCE_MS, OfflineCaptureStore::flushAsync);
+    }
+
+    // gira sul thread SMD-IO (coalesce)
+    private static void flushAsync() {
+        List<String> batch;
+        synchronized (OfflineCaptureStore.class) {
+            if (unflushed.isEmpty()) return;
+            batch = unflushed;
+            unflushed = new ArrayList<>();
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String line : batch) sb.append(line).append('\n');
+        try {
+            Path cfgDir = FabricLoader.getInstance().getConfigDir();
+            Files.createDirectories(cfgDir);
+            Files.writeString(cfgDir.resolve(FILE_NAME), sb.toString(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            System.out.println("[SMD][OFFLINE] Scrittura " + FILE_NAME + " fallita: " + e.getMessage());
+        }
+    }
+
+    /** Un record cattura per ogni plot ancora da sincronizzare (chiamare con il lock). */
+    private static List<String> snapshotLines() {
+        List<String> lines = new ArrayList<>(ENTRIES.size());
+        for (Captured c : ENTRIES.values()) {
+            Record record = new Record();
+            record.op = OP_CAPTURE;
+            record.plot = c;
+            lines.add(GSON.toJson(record));
+        }
+        return lines;
+    }
+
+    private static void writeCompacted(List<String> lines) {
+        try {
+            Path cfgDir = FabricLoader.getInstance().getConfigDir();
+            Path tmp = cfgDir.resolve(TMP_FILE_NAME);
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines) sb.append(line).append('\n');
+            Files.writeString(tmp, sb.toString(), StandardCharsets.UTF_8);
+            try {
+                Files.move(tmp, cfgDir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, cfgDir.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.out.println("[SMD][OFFLINE] Compattazione " + FILE_NAME + " fallita: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,820 @@
+package it.smd.mappatura;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Tabella dei plot in cache con tipi primitivi (usata da PlotCacheManager).
+ *
+ * - plotId "x;z" e id numerici sono impacchettati in un long; gli altri id passano
+ *   da un pool di stringhe e finiscono comunque in un long.
+ * - owner e dimensione sono internati in int: il nome di un owner esiste una sola volta.
+ * - Una riga per plot in array paralleli (coordinate, owner, dimensione, firstSeen, fingerprint);
+ *   indice long -> riga a indirizzamento aperto (linear probing).
+ * - Righe dello stesso owner collegate in una lista doppia (ownerPrev/ownerNext): ricerca per
+ *   owner senza scansione, cambio owner in O(1).
+ * - Griglia spaziale a celle di 64x64 blocchi per dimensione: cella -> lista doppia delle sue
+ *   righe (cellPrev/cellNext), aggiornata a ogni put. within() guarda solo le celle del quadrato
+ *   attorno al punto, nearest() allarga un anello di celle alla volta e si ferma appena i k
+ *   migliori sono più vicini di qualunque cella non ancora vista.
+ *
+ * Scritture con il write lock della StampedLock; letture ottimistiche (nessun lock se
+ * nessuno scrive nel frattempo), con ripiego sul read lock se la validazione fallisce.
+ * Le righe non vengono mai cancellate singolarmente, solo con clear().
+ */
+final class PackedPlotTable {
+
+    private static final long EMPTY = -1L;
+    // 00 = "x;z" (31+31 bit), 01 = numerico, 1x = pool di stringhe
+    private static final long TAG_NUMERIC = 1L << 62;
+    private static final long TAG_POOLED = 1L << 63;
+    private static final long MASK_31 = 0x7fffffffL;
+    private static final int MIN_PACKED = -(1 << 30);
+    private static final int MAX_PACKED = (1 << 30) - 1;
+    private static final int INITIAL_ROWS = 1024;
+    // griglia: cella = 64 blocchi; chiave = dimensione (11 bit) | cx (26 bit) | cz (26 bit)
+    private static final int CELL_SHIFT = 6;
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+    private static final long CELL_EMPTY = Long.MIN_VALUE;
+    private static final long MASK_26 = 0x3ffffffL;
+    private static final int DIM_BITS_UNKNOWN = 0x7ff;
+    private static final int INITIAL_CELLS = 256;
+
+    private final StampedLock lock = new StampedLock();
+
+    // indice: slot -> chiave / riga (solo chiavi != EMPTY sono occupate)
+    private long[] slotKeys = newSlots(INITIAL_ROWS * 2);
+    private int[] slotRows = new int[INITIAL_ROWS * 2];
+
+    // righe
+    private int rows = 0;
+    private long[] rowKey = new long[INITIAL_ROWS];
+    private int[] rowX = new int[INITIAL_ROWS];
+    private int[] rowZ = new int[INITIAL_ROWS];
+    private int[] rowOwner = new int[INITIAL_ROWS];
+    private int[] rowDim = new int[INITIAL_ROWS];
+    private long[] rowFirstSeen = new long[INITIAL_ROWS];
+    private long[] rowFingerprint = new long[INITIAL_ROWS];
+    private int[] ownerPrev = new int[INITIAL_ROWS];
+    private int[] ownerNext = new int[INITIAL_ROWS];
+    private int[] cellPrev = new int[INITIAL_ROWS];
+    private int[] cellNext = new int[INITIAL_ROWS];
+
+    // griglia: chiave cella -> prima riga (-1 = cella vuota), limiti delle celle usate
+    private long[] cellKeys = newCells(INITIAL_CELLS);
+    private int[] cellHeads = new int[INITIAL_CELLS];
+    private int cellCount = 0;
+    private int minCellX = Integer.MAX_VALUE;
+    private int maxCellX = Integer.MIN_VALUE;
+    private int minCellZ = Integer.MAX_VALUE;
+    private int maxCellZ = Integer.MIN_VALUE;
+
+    // owner: id -> testa della lista / numero plot
+    private int[] ownerHead = new int[16];
+    private int[] ownerCount = new int[16];
+
+    private final StringPool owners = new StringPool(true);
+    private final StringPool dimensions = new StringPool(false);
+    private final StringPool otherIds = new StringPool(false);
+
+    /** Pool di stringhe internate: id -> stringa in un array, stringa -> id in una mappa concorrente. */
+    private static final class StringPool {
+        private final boolean caseInsensitive;
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[16];
+        private int size = 0;
+
+        private StringPool(boolean caseInsensitive) {
+            this.caseInsensitive = caseInsensitive;
+        }
+
+        private String normalize(String s) {
+            return caseInsensitive ? s.toLowerCase(Locale.ROOT) : s;
+        }
+
+        int find(String s) {
+            if (s == null) return -1;
+            Integer id = ids.get(normalize(s));
+            return id != null ? id : -1;
+        }
+
+        // solo con il write lock della tabella
+        int intern(String s) {
+            if (s == null) return -1;
+            String k = normalize(s);
+            Integer id = ids.get(k);
+            if (id != null) return id;
+            String[] v = values;
+            if (size == v.length) {
+                v = Arrays.copyOf(v, v.length * 2);
+                values = v;
+            }
+            v[size] = s;
+            ids.put(k, size);
+            return size++;
+        }
+
+        String get(int id) {
+            String[] v = values;
+            return id >= 0 && id < v.length ? v[id] : null;
+        }
+
+        void clear() {
+            ids.clear();
+            values = new String[16];
+            size = 0;
+        }
+    }
+
+    // ====== letture ======
+
+    boolean contains(String plotId) {
+        long key = keyOf(plotId);
+        if (key == EMPTY) return false;
+        long stamp = lock.tryOptimisticRead();
+        boolean found = findRow(key) >= 0;
+        if (lock.validate(stamp)) return found;
+        stamp = lock.readLock();
+        try {
+            return findRow(key) >= 0;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Copia della riga del plot, null se non c'è. */
+    PlotCacheManager.Entry get(String plotId) {
+        long key = keyOf(plotId);
+        if (key == EMPTY) return null;
+        long stamp = lock.tryOptimisticRead();
+        PlotCacheManager.Entry e = readEntry(findRow(key));
+        if (lock.validate(stamp)) return e;
+        stamp = lock.readLock();
+        try {
+            return readEntry(findRow(key));
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Plot di un owner (nome senza distinzione maiuscole/minuscole). */
+    List<PlotCacheManager.Entry> byOwner(String owner) {
+        int ownerId = owners.find(owner);
+        if (ownerId < 0) return new ArrayList<>();
+        long stamp = lock.tryOptimisticRead();
+        List<PlotCacheManager.Entry> out = collectOwner(ownerId);
+        if (lock.validate(stamp)) return out;
+        stamp = lock.readLock();
+        try {
+            return collectOwner(ownerId);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** Nomi originali degli owner con almeno un plot. */
+    List<String> ownerNames() {
+        long stamp = lock.readLock();
+        try {
+            List<String> out = new ArrayList<>();
+            for (int id = 0; id < owners.size; id++) {
+                if (id < ownerCount.length && ownerCount[id] > 0) out.add(owners.get(id));
+            }
+            return out;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    int size() {
+        long stamp = lock.tryOptimisticRead();
+        int n = rows;
+        if (lock.validate(stamp)) return n;
+        stamp = lock.readLock();
+        try {
+            return rows;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Plot entro radius blocchi da (x, z) nella dimensione data, dal più vicino.
+     * owner != null filtra per proprietario. I plot senza dimensione (searchPlot) valgono ovunque.
+     */
+    List<PlotCacheManager.Entry> within(int x, int z, String dimension, int radius, String owner) {
+        long stamp = lock.readLock();
+        try {
+            Query q = newQuery(x, z, dimension, owner);
+            if (q == null || radius < 0) return new ArrayList<>();
+            double maxD2 = (double) radius * radius;
+            List<Hit> hits = new ArrayList<>();
+            int cx0 = Math.max(cellOf((long) x - radius), minCellX);
+            int cx1 = Math.min(cellOf((long) x + radius), maxCellX);
+            int cz0 = Math.max(cellOf((long) z - radius), minCellZ);
+            int cz1 = Math.min(cellOf((long) z + radius), maxCellZ);
+            if (cx0 <= cx1 && cz0 <= cz1) {
+                long boxCells = (long) (cx1 - cx0 + 1) * (cz1 - cz0 + 1);
+                if (boxCells > cellCount) {
+                    // raggio enorme rispetto ai dati: meglio scorrere le celle esistenti
+                    for (int i = 0; i < cellKeys.length; i++) {
+                        long cell = cellKeys[i];
+                        if (cell == CELL_EMPTY || !q.matchesDim(cellDim(cell))) continue;
+                        int cx = cellX(cell);
+                        int cz = cellZ(cell);
+                        if (cx < cx0 || cx > cx1 || cz < cz0 || cz > cz1) continue;
+                        collectWithin(q, cellHeads[i], maxD2, hits);
+                    }
+                } else {
+                    for (int cx = cx0; cx <= cx1; cx++) {
+                        for (int cz = cz0; cz <= cz1; cz++) {
+                            for (int dimBits : q.dimBits) collectWithin(q, cellHead(dimBits, cx, cz), maxD2, hits);
+                        }
+                    }
+                }
+            }
+            hits.sort((a, b) -> Double.compare(a.d2, b.d2));
+            List<PlotCacheManager.Entry> out = new ArrayList<>(hits.size());
+            for (Hit h : hits) out.add(readEntry(h.row));
+            return out;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * I k plot più vicini a (x, z) nella dimensione data, dal più vicino.
+     * maxRadius > 0 esclude quelli più lontani; owner != null filtra per proprietario.
+     */
+    List<PlotCacheManager.Entry> nearest(int x, int z, String dimension, int k, int maxRadius, String owner) {
+        long stamp = lock.readLock();
+        try {
+            Query q = newQuery(x, z, dimension, owner);
+            if (q == null || k <= 0) return new ArrayList<>();
+            double maxD2 = maxRadius > 0 ? (double) maxRadius * maxRadius : Double.POSITIVE_INFINITY;
+            // max-heap: in cima il peggiore dei k migliori
+            PriorityQueue<Hit> best = new PriorityQueue<>(k + 1, (a, b) -> Double.compare(b.d2, a.d2));
+            int cx = cellOf(x);
+            int cz = cellOf(z);
+            // gli anelli prima del rettangolo delle celle usate sono vuoti
+            int r0 = Math.max(0, Math.max(Math.max(minCellX - cx, cx - maxCellX), Math.max(minCellZ - cz, cz - maxCellZ)));
+            long probed = 0;
+            for (int r = r0; ; r++) {
+                probed += ringCells(cx, cz, r);
+                if (probed > 2L * cellCount + 64) {
+                    // l'anello costerebbe più delle celle rimaste: scorre quelle fuori dal quadrato già visto
+                    for (int i = 0; i < cellKeys.length; i++) {
+                        long cell = cellKeys[i];
+                        if (cell == CELL_EMPTY || !q.matchesDim(cellDim(cell))) continue;
+                        if (Math.abs(cellX(cell) - cx) < r && Math.abs(cellZ(cell) - cz) < r) continue;
+                        collectNearest(q, cellHeads[i], k, maxD2, best);
+                    }
+                    break;
+                }
+                scanRing(q, cx, cz, r, k, maxD2, best);
+                // fermo appena nessuna cella non vista può battere il k-esimo migliore
+                double unseenD2 = unseenD2(x, z, cx, cz, r);
+                // infinita = viste tutte le celle
+                if (unseenD2 > maxD2 || unseenD2 == Double.POSITIVE_INFINITY) break;
+                if (best.size() == k && best.peek().d2 <= unseenD2) break;
+            }
+            List<Hit> hits = new ArrayList<>(best);
+            hits.sort((a, b) -> Double.compare(a.d2, b.d2));
+            List<PlotCacheManager.Entry> out = new ArrayList<>(hits.size());
+            for (Hit h : hits) out.add(readEntry(h.row));
+            return out;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // ====== scritture ======
+
+    /** Inserisce o sostituisce la riga del plot. */
+    void put(PlotCacheManager.Entry e) {
+        long stamp = lock.writeLock();
+        try {
+            putLocked(e, true);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /** Inserisce solo se il plot non c'è. Ritorna true se inserito. */
+    boolean putIfAbsent(PlotCacheManager.Entry e) {
+        long stamp = lock.writeLock();
+        try {
+            return putLocked(e, false);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    void clear() {
+        long stamp = lock.writeLock();
+        try {
+            slotKeys = newSlots(INITIAL_ROWS * 2);
+            slotRows = new int[INITIAL_ROWS * 2];
+            rows = 0;
+            rowKey = new long[INITIAL_ROWS];
+            rowX = new int[INITIAL_ROWS];
+            rowZ = new int[INITIAL_ROWS];
+            rowOwner = new int[INITIAL_ROWS];
+            rowDim = new int[INITIAL_ROWS];
+            rowFirstSeen = new long[INITIAL_ROWS];
+            rowFingerprint = new long[INITIAL_ROWS];
+            ownerPrev = new int[INITIAL_ROWS];
+            ownerNext = new int[INITIAL_ROWS];
+            ownerHead = new int[16];
+            ownerCount = new int[16];
+            cellPrev = new int[INITIAL_ROWS];
+            cellNext = new int[INITIAL_ROWS];
+            cellKeys = newCells(INITIAL_CELLS);
+            cellHeads = new int[INITIAL_CELLS];
+            cellCount = 0;
+            minCellX = Integer.MAX_VALUE;
+            maxCellX = Integer.MIN_VALUE;
+            minCellZ = Integer.MAX_VALUE;
+            maxCellZ = Integer.MIN_VALUE;
+            owners.clear();
+            dimensions.clear();
+            otherIds.clear();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private boolean putLocked(PlotCacheManager.Entry e, boolean replace) {
+        long key = internKey(e.plotId);
+        int row = findRow(key);
+        if (row >= 0 && !replace) return false;
+
+        int ownerId = owners.intern(e.owner);
+        int dimId = dimensions.intern(e.dimension);
+        boolean added = row < 0;
+        long newCell = cellKey(dimBits(dimId), cellOf(e.coordX), cellOf(e.coordZ));
+        if (!added) {
+            long oldCell = cellKey(dimBits(rowDim[row]), cellOf(rowX[row]), cellOf(rowZ[row]));
+            if (oldCell != newCell) unlinkCell(row, oldCell);
+            else newCell = CELL_EMPTY;
+        }
+        if (added) {
+            row = rows;
+            ensureRowCapacity(row + 1);
+            // fattore di carico massimo 0.5: le ricerche restano a 1-2 sonde
+            if ((row + 1) * 2 > slotKeys.length) rehash(slotKeys.length * 2);
+            rowKey[row] = key;
+            rowOwner[row] = -1;
+        }
+        rowX[row] = e.coordX;
+        rowZ[row] = e.coordZ;
+        rowDim[row] = dimId;
+        rowFirstSeen[row] = e.firstSeenAtMs;
+        rowFingerprint[row] = e.fingerprint;
+        if (rowOwner[row] != ownerId) {
+            unlinkOwner(row);
+            linkOwner(row, ownerId);
+        }
+        if (newCell != CELL_EMPTY) linkCell(row, newCell);
+        if (added) {
+            // la riga diventa visibile solo quando è completa
+            insertSlot(key, row);
+            rows = row + 1;
+        }
+        return true;
+    }
+
+    private void linkOwner(int row, int ownerId) {
+        rowOwner[row] = ownerId;
+        if (ownerId < 0) return;
+        if (ownerId >= ownerHead.length) {
+            int n = Math.max(ownerHead.length * 2, ownerId + 1);
+            int old = ownerHead.length;
+            ownerHead = Arrays.copyOf(ownerHead, n);
+            ownerCount = Arrays.copyOf(ownerCount, n);
+            Arrays.fill(ownerHead, old, n, -1);
+        }
+        if (ownerCount[ownerId] == 0) ownerHead[ownerId] = -1;
+        int head = ownerHead[ownerId];
+        ownerPrev[row] = -1;
+        ownerNext[row] = head;
+        if (head >= 0) ownerPrev[head] = row;
+        ownerHead[ownerId] = row;
+        ownerCount[ownerId]++;
+    }
+
+    private void unlinkOwner(int row) {
+        int ownerId = rowOwner[row];
+        if (ownerId < 0) return;
+        int prev = ownerPrev[row];
+        int next = ownerNext[row];
+        if (prev >= 0) ownerNext[prev] = next;
+        else ownerHead[ownerId] = next;
+        if (next >= 0) ownerPrev[next] = prev;
+        ownerCount[ownerId]--;
+        rowOwner[row] = -1;
+    }
+
+    private void linkCell(int row, long cell) {
+        int slot = cellSlotForInsert(cell);
+        int head = cellHeads[slot];
+        cellPrev[row] = -1;
+        cellNext[row] = head;
+        if (head >= 0) cellPrev[head] = row;
+        cellHeads[slot] = row;
+        int cx = cellX(cell);
+        int cz = cellZ(cell);
+        if (cx < minCellX) minCellX = cx;
+        if (cx > maxCellX) maxCellX = cx;
+        if (cz < minCellZ) minCellZ = cz;
+        if (cz > maxCellZ) maxCellZ = cz;
+    }
+
+    private void unlinkCell(int row, long cell) {
+        int slot = findCellSlot(cell);
+        if (slot < 0) return;
+        int prev = cellPrev[row];
+        int next = cellNext[row];
+        if (prev >= 0) cellNext[prev] = next;
+        else cellHeads[slot] = next;
+        if (next >= 0) cellPrev[next] = prev;
+    }
+
+    /** Slot della cella, creata vuota se manca. Le celle svuotate restano (i limiti non si restringono). */
+    private int cellSlotForInsert(long cell) {
+        int slot = findCellSlot(cell);
+        if (slot >= 0) return slot;
+        if ((cellCount + 1) * 2 > cellKeys.length) rehashCells(cellKeys.length * 2);
+        int mask = cellKeys.length - 1;
+        int i = mix(cell) & mask;
+        while (cellKeys[i] != CELL_EMPTY) i = (i + 1) & mask;
+        cellKeys[i] = cell;
+        cellHeads[i] = -1;
+        cellCount++;
+        return i;
+    }
+
+    private void rehashCells(int capacity) {
+        long[] keys = newCells(capacity);
+        int[] heads = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < cellKeys.length; j++) {
+            long cell = cellKeys[j];
+            if (cell == CELL_EMPTY) continue;
+            int i = mix(cell) & mask;
+            while (keys[i] != CELL_EMPTY) i = (i + 1) & mask;
+            keys[i] = cell;
+            heads[i] = cellHeads[j];
+        }
+        cellKeys = keys;
+        cellHeads = heads;
+    }
+
+    private void ensureRowCapacity(int needed) {
+        if (needed <= rowKey.length) return;
+        int n = rowKey.length * 2;
+        rowKey = Arrays.copyOf(rowKey, n);
+        rowX = Arrays.copyOf(rowX, n);
+        rowZ = Arrays.copyOf(rowZ, n);
+        rowOwner = Arrays.copyOf(rowOwner, n);
+        rowDim = Arrays.copyOf(rowDim, n);
+        rowFirstSeen = Arrays.copyOf(rowFirstSeen, n);
+        rowFingerprint = Arrays.copyOf(rowFingerprint, n);
+        ownerPrev = Arrays.copyOf(ownerPrev, n);
+        ownerNext = Arrays.copyOf(ownerNext, n);
+        cellPrev = Arrays.copyOf(cellPrev, n);
+        cellNext = Arrays.copyOf(cellNext, n);
+    }
+
+    private void insertSlot(long key, int row) {
+        long[] keys = slotKeys;
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        while (keys[i] != EMPTY) i = (i + 1) & mask;
+        slotRows[i] = row;
+        keys[i] = key;
+    }
+
+    private void rehash(int capacity) {
+        long[] keys = newSlots(capacity);
+        int[] slots = new int[capacity];
+        int mask = capacity - 1;
+        // ricostruito dalle righe: ogni riga ha esattamente una chiave
+        for (int row = 0; row < rows; row++) {
+            int i = mix(rowKey[row]) & mask;
+            while (keys[i] != EMPTY) i = (i + 1) & mask;
+            keys[i] = rowKey[row];
+            slots[i] = row;
+        }
+        slotKeys = keys;
+        slotRows = slots;
+    }
+
+    // ====== supporto letture (anche ottimistiche: nessuna eccezione su stato incoerente) ======
+
+    private int findRow(long key) {
+        long[] keys = slotKeys;
+        int[] slots = slotRows;
+        if (slots.length != keys.length) return -1;
+        int i = findSlotIn(keys, key);
+        if (i < 0) return -1;
+        int row = slots[i];
+        return row >= 0 && row < rows ? row : -1;
+    }
+
+    private static int findSlotIn(long[] keys, long key) {
+        int mask = keys.length - 1;
+        int i = mix(key) & mask;
+        for (int probes = 0; probes < keys.length; probes++) {
+            long k = keys[i];
+            if (k == EMPTY) return -1;
+            if (k == key) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    private PlotCacheManager.Entry readEntry(int row) {
+        long[] keysByRow = rowKey;
+        int[] xs = rowX;
+        int[] zs = rowZ;
+        int[] ownersByRow = rowOwner;
+        int[] dims = rowDim;
+        long[] seen = rowFirstSeen;
+        long[] fps = rowFingerprint;
+        if (row < 0 || row >= keysByRow.length || row >= xs.length || row >= zs.length || row >= ownersByRow.length
+                || row >= dims.length || row >= seen.length || row >= fps.length) {
+            return null;
+        }
+        PlotCacheManager.Entry e = new PlotCacheManager.Entry();
+        e.plotId = idOf(keysByRow[row]);
+        e.coordX = xs[row];
+        e.coordZ = zs[row];
+        e.owner = owners.get(ownersByRow[row]);
+        e.dimension = dimensions.get(dims[row]);
+        e.firstSeenAtMs = seen[row];
+        e.fingerprint = fps[row];
+        return e;
+    }
+
+    private List<PlotCacheManager.Entry> collectOwner(int ownerId) {
+        List<PlotCacheManager.Entry> out = new ArrayList<>();
+        int[] heads = ownerHead;
+        int[] counts = ownerCount;
+        int[] next = ownerNext;
+        if (ownerId >= heads.length || ownerId >= counts.length || counts[ownerId] <= 0) return out;
+        int row = heads[ownerId];
+        // limite sulle iterazioni: con una scrittura concorrente la lista può essere a metà
+        int guard = counts[ownerId];
+        while (row >= 0 && row < next.length && guard-- > 0) {
+            PlotCacheManager.Entry e = readEntry(row);
+            if (e != null) out.add(e);
+            row = next[row];
+        }
+        return out;
+    }
+
+    // ====== supporto griglia (con il read o il write lock) ======
+
+    /** Punto di partenza di una ricerca spaziale: null se l'owner richiesto non ha plot. */
+    private final class Query {
+        final int x;
+        final int z;
+        final int dimId;
+        final int ownerId;
+        // celle da guardare: la dimensione richiesta e quella dei plot senza dimensione
+        final int[] dimBits;
+
+        Query(int x, int z, int dimId, int ownerId) {
+            this.x = x;
+            this.z = z;
+            this.dimId = dimId;
+            this.ownerId = ownerId;
+            this.dimBits = dimId >= 0 ? new int[] { dimBits(dimId), DIM_BITS_UNKNOWN } : new int[] { DIM_BITS_UNKNOWN };
+        }
+
+        boolean matchesDim(int bits) {
+            return bits == DIM_BITS_UNKNOWN || (dimId >= 0 && bits == dimBits(dimId));
+        }
+
+        /** Distanza al quadrato, -1 se la riga non rientra nei filtri. */
+        double d2(int row) {
+            int d = rowDim[row];
+            if (d >= 0 && d != dimId) return -1;
+            if (ownerId >= 0 && rowOwner[row] != ownerId) return -1;
+            double dx = (double) rowX[row] - x;
+            double dz = (double) rowZ[row] - z;
+            return dx * dx + dz * dz;
+        }
+    }
+
+    private static final class Hit {
+        final int row;
+        final double d2;
+
+        Hit(int row, double d2) {
+            this.row = row;
+            this.d2 = d2;
+        }
+    }
+
+    private Query newQuery(int x, int z, String dimension, String owner) {
+        if (rows == 0) return null;
+        int ownerId = -1;
+        if (owner != null) {
+            ownerId = owners.find(owner);
+            if (ownerId < 0) return null;
+        }
+        return new Query(x, z, dimensions.find(dimension), ownerId);
+    }
+
+    private void collectWithin(Query q, int row, double maxD2, List<Hit> out) {
+        for (; row >= 0; row = cellNext[row]) {
+            double d2 = q.d2(row);
+            if (d2 >= 0 && d2 <= maxD2) out.add(new Hit(row, d2));
+        }
+    }
+
+    private void collectNearest(Query q, int row, int k, double maxD2, PriorityQueue<Hit> best) {
+        for (; row >= 0; row = cellNext[row]) {
+            double d2 = q.d2(row);
+            if (d2 < 0 || d2 > maxD2) continue;
+            if (best.size() == k && d2 >= best.peek().d2) continue;
+            best.add(new Hit(row, d2));
+            if (best.size() > k) best.poll();
+        }
+    }
+
+    /** Celle a distanza di Chebyshev esattamente r da (cx, cz), tagliate al rettangolo delle celle usate. */
+    private void scanRing(Query q, int cx, int cz, int r, int k, double maxD2, PriorityQueue<Hit> best) {
+        int x0 = Math.max(cx - r, minCellX);
+        int x1 = Math.min(cx + r, maxCellX);
+        int z0 = Math.max(cz - r + 1, minCellZ);
+        int z1 = Math.min(cz + r - 1, maxCellZ);
+        for (int dimBits : q.dimBits) {
+            for (int x = x0; x <= x1; x++) {
+                collectNearest(q, cellHead(dimBits, x, cz - r), k, maxD2, best);
+                if (r > 0) collectNearest(q, cellHead(dimBits, x, cz + r), k, maxD2, best);
+            }
+            for (int z = z0; z <= z1; z++) {
+                collectNearest(q, cellHead(dimBits, cx - r, z), k, maxD2, best);
+                collectNearest(q, cellHead(dimBits, cx + r, z), k, maxD2, best);
+            }
+        }
+    }
+
+    /**
+     * Distanza al quadrato minima tra (x, z) e le celle usate non ancora viste (fuori dal quadrato
+     * di raggio r attorno a (cx, cz)); infinita se sono state viste tutte.
+     */
+    private double unseenD2(int x, int z, int cx, int cz, int r) {
+        double d2 = Double.POSITIVE_INFINITY;
+        int bx0 = Math.max(cx - r, minCellX);
+        int bx1 = Math.min(cx + r, maxCellX);
+        // sinistra e destra a tutta altezza, sopra e sotto solo tra le due
+        d2 = Math.min(d2, rectD2(x, z, minCellX, cx - r - 1, minCellZ, maxCellZ));
+        d2 = Math.min(d2, rectD2(x, z, cx + r + 1, maxCellX, minCellZ, maxCellZ));
+        d2 = Math.min(d2, rectD2(x, z, bx0, bx1, minCellZ, cz - r - 1));
+        d2 = Math.min(d2, rectD2(x, z, bx0, bx1, cz + r + 1, maxCellZ));
+        return d2;
+    }
+
+    /** Distanza al quadrato tra (x, z) e il rettangolo di celle [cx0..cx1] x [cz0..cz1] (infinita se vuoto). */
+    private static double rectD2(int x, int z, int cx0, int cx1, int cz0, int cz1) {
+        if (cx0 > cx1 || cz0 > cz1) return Double.POSITIVE_INFINITY;
+        double dx = axisDistance(x, (long) cx0 * CELL_SIZE, (long) cx1 * CELL_SIZE + CELL_SIZE - 1);
+        double dz = axisDistance(z, (long) cz0 * CELL_SIZE, (long) cz1 * CELL_SIZE + CELL_SIZE - 1);
+        return dx * dx + dz * dz;
+    }
+
+    private static double axisDistance(long v, long lo, long hi) {
+        return v < lo ? lo - v : v > hi ? v - hi : 0;
+    }
+
+    private long ringCells(int cx, int cz, int r) {
+        long cols = Math.max(0, Math.min(cx + r, maxCellX) - Math.max(cx - r, minCellX) + 1);
+        long inner = Math.max(0, Math.min(cz + r - 1, maxCellZ) - Math.max(cz - r + 1, minCellZ) + 1);
+        long n = 0;
+        if (cz - r >= minCellZ && cz - r <= maxCellZ) n += cols;
+        if (r > 0 && cz + r >= minCellZ && cz + r <= maxCellZ) n += cols;
+        if (cx - r >= minCellX && cx - r <= maxCellX) n += inner;
+        if (r > 0 && cx + r >= minCellX && cx + r <= maxCellX) n += inner;
+        return n;
+    }
+
+    private int cellHead(int dimBits, int cx, int cz) {
+        if (cx < minCellX || cx > maxCellX || cz < minCellZ || cz > maxCellZ) return -1;
+        int slot = findCellSlot(cellKey(dimBits, cx, cz));
+        return slot >= 0 ? cellHeads[slot] : -1;
+    }
+
+    private int findCellSlot(long cell) {
+        long[] keys = cellKeys;
+        int mask = keys.length - 1;
+        int i = mix(cell) & mask;
+        for (int probes = 0; probes < keys.length; probes++) {
+            long k = keys[i];
+            if (k == CELL_EMPTY) return -1;
+            if (k == cell) return i;
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Id dimensione nei bit della cella; -1 (senza dimensione) ha un valore riservato. */
+    private static int dimBits(int dimId) {
+        return dimId < 0 ? DIM_BITS_UNKNOWN : Math.min(dimId, DIM_BITS_UNKNOWN - 1);
+    }
+
+    private static int cellOf(long coord) {
+        return (int) (coord >> CELL_SHIFT);
+    }
+
+    // il bit alto resta 0: CELL_EMPTY (solo bit 63) non è mai una cella valida
+    private static long cellKey(int dimBits, int cx, int cz) {
+        return ((long) dimBits << 52) | ((cx & MASK_26) << 26) | (cz & MASK_26);
+    }
+
+    private static int cellDim(long cell) {
+        return (int) (cell >>> 52);
+    }
+
+    private static int cellX(long cell) {
+        return ((int) ((cell >>> 26) & MASK_26) << 6) >> 6;
+    }
+
+    private static int cellZ(long cell) {
+        return ((int) (cell & MASK_26) << 6) >> 6;
+    }
+
+    private static long[] newCells(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, CELL_EMPTY);
+        return keys;
+    }
+
+    // ====== chiavi ======
+
+    /** Chiave di un id senza crearne una nuova nel pool (EMPTY se sconosciuto). */
+    private long keyOf(String plotId) {
+        if (plotId == null) return EMPTY;
+        long packed = pack(plotId);
+        if (packed != EMPTY) return packed;
+        int id = otherIds.find(plotId);
+        return id >= 0 ? TAG_POOLED | id : EMPTY;
+    }
+
+    private long internKey(String plotId) {
+        long packed = pack(plotId);
+        if (packed != EMPTY) return packed;
+        return TAG_POOLED | otherIds.intern(plotId);
+    }
+
+    /** "x;z" e interi non negativi in forma canonica (la conversione inversa deve ridare la stessa stringa). */
+    static long pack(String plotId) {
+        int sep = plotId.indexOf(';');
+        try {
+            if (sep < 0) {
+                if (plotId.isEmpty() || plotId.length() > 18 || plotId.charAt(0) == '-' || plotId.charAt(0) == '+') return EMPTY;
+                long n = Long.parseLong(plotId);
+                if (!Long.toString(n).equals(plotId)) return EMPTY;
+                return TAG_NUMERIC | n;
+            }
+            int a = Integer.parseInt(plotId.substring(0, sep));
+            int b = Integer.parseInt(plotId.substring(sep + 1));
+            if (a < MIN_PACKED || a > MAX_PACKED || b < MIN_PACKED || b > MAX_PACKED) return EMPTY;
+            if (!(a + ";" + b).equals(plotId)) return EMPTY;
+            return ((a & MASK_31) << 31) | (b & MASK_31);
+        } catch (NumberFormatException e) {
+            return EMPTY;
+        }
+    }
+
+    private String idOf(long key) {
+        if ((key & TAG_POOLED) != 0) return otherIds.get((int) (key & ~TAG_POOLED));
+        if ((key & TAG_NUMERIC) != 0) return Long.toString(key & ~TAG_NUMERIC);
+        int a = (int) (key >>> 31);
+        int b = (int) (key & MASK_31);
+        // estensione del segno a 31 bit
+        a = (a << 1) >> 1;
+        b = (b << 1) >> 1;
+        return a + ";" + b;
+    }
+
+    private static int mix(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long[] newSlots(int capacity) {
+        long[] keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        return keys;
+    }
+}
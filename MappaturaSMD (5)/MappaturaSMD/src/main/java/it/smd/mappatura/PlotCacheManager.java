@@ -1,30 +1,79 @@
 package it.smd.mappatura;
 
 import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ServerInfo;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
- * Cache locale SOLO per la sessione corrente (si svuota quando esci/rientri).
- * Non salva più su disco.
+ * Cache locale dei plot già mappati, persistente tra riavvii e riconnessioni.
+ *
+ * - Separata per codice sessione + server (namespace): un file binario per namespace
+ *   in config/mappaturasmd_cache/.
+ * - Formato compatto: header "SMDC" + versione, poi record appesi in coda
+ *   (plotId, owner, x, z, firstSeenAtMs, fingerprint, dimensione). Un record troncato in fondo viene tagliato
+ *   via al caricamento (gli append successivi ripartono da un confine valido); se lo stesso
+ *   plotId compare più volte vale l'ultimo.
+ * - Caricamento in background al cambio di namespace; i plot nuovi o cambiati vengono appesi
+ *   a blocchi (scrittura coalescente sul thread SMD-IO). Il file è riscritto compatto solo al
+ *   caricamento, quando i record superati sono troppi.
+ * - Per ogni plot c'è il fingerprint dei campi inviati (proprietario, ultimo accesso, dimensione):
+ *   classify() dice se un plot riletto è nuovo, cambiato o identico all'ultimo invio.
+ *
+ * In memoria i plot stanno in PackedPlotTable (id impacchettati in long, owner/dimensione
+ * internati, array paralleli, griglia spaziale per nearest/withinRadius): le letture (isPlotMapped, classify, search, ...) sono ottimistiche
+ * e senza lock; le scritture si serializzano sul lock della classe (namespace e blocco da
+ * scrivere) e sul write lock della tabella. Le Entry restituite sono copie.
  */
 public class PlotCacheManager {
 
-    private static final String FILE_NAME = "mappaturasmd_cache.json";
+    private static final String LEGACY_FILE_NAME = "mappaturasmd_cache.json";
+    private static final String DIR_NAME = "mappaturasmd_cache";
     private static final String UNKNOWN_OWNER = "Senza proprietario";
+    private static final int MAGIC = 0x534D4443; // "SMDC"
+    private static final int VERSION = 1;
+    // oltre questa quota di record superati il file viene riscritto al caricamento
+    private static final int COMPACT_MIN_RECORDS = 256;
+    private static final long FLUSH_COALESCE_MS = 2_000L;
+    // il caricamento inserisce a blocchi: i lettori non aspettano tutto il file
+    private static final int LOAD_CHUNK = 4096;
 
-    /** key = owner normalizzato (lowercase), value = entries */
-    private static final Map<String, List<Entry>> BY_OWNER = new HashMap<>();
-    private static final Set<String> PLOT_IDS = new HashSet<>();
+    private static final PackedPlotTable TABLE = new PackedPlotTable();
+
+    // namespace corrente e plot non ancora scritti nel suo file (solo con il lock)
+    private static String namespace = null;
+    private static Path namespaceFile = null;
+    private static long generation = 0L;
+    private static List<Entry> unflushed = new ArrayList<>();
+
+    /** Esito del confronto tra un plot riletto e la cache. */
+    public enum Change { NEW, CHANGED, UNCHANGED }
 
     public static class Entry {
         public String owner;    // Nome proprietario (originale)
         public String plotId;   // "-5;10"
         public int coordX;
         public int coordZ;
+        public String dimension;
         public long firstSeenAtMs;
+        // fingerprint dei campi dell'ultimo invio (0 = sconosciuto, es. risultato di searchPlot)
+        public long fingerprint;
 
         public Entry() {}
 
@@ -42,66 +91,162 @@ public class PlotCacheManager {
     }
 
     public static synchronized void init() {
-        clearPersistedCacheFile();
+        // la vecchia cache JSON non è più usata
+        DiskExecutor.run("cache", () -> {
+            try {
+                Files.deleteIfExists(FabricLoader.getInstance().getConfigDir().resolve(LEGACY_FILE_NAME));
+            } catch (Exception ignored) {}
+        });
+    }
+
+    /**
+     * Attiva il namespace del codice sessione e del server correnti (JOIN, avvio mappatura).
+     * Se cambia, i plot in sospeso vanno nel file vecchio e quello nuovo viene caricato in background.
+     */
+    public static void ensureNamespace() {
+        AppConfig cfg = ConfigManager.get();
+        String session = cfg != null && cfg.sessionCode != null ? cfg.sessionCode.trim() : "";
+        String server = currentServerKey();
+        String next = (session.isBlank() ? "nosession" : session) + "@" + server;
+
+        synchronized (PlotCacheManager.class) {
+            if (next.equals(namespace)) return;
+            flushPending();
+
+            TABLE.clear();
+            namespace = next;
+            namespaceFile = FabricLoader.getInstance().getConfigDir().resolve(DIR_NAME).resolve(sanitize(next) + ".bin");
+            long gen = ++generation;
+            Path file = namespaceFile;
+
+            DiskExecutor.supply("cache", () -> readFile(file)).thenAccept(loaded -> {
+                List<Entry> all = new ArrayList<>(loaded);
+                for (int i = 0; i < all.size(); i += LOAD_CHUNK) {
+                    synchronized (PlotCacheManager.class) {
+                        if (gen != generation) return; // namespace cambiato nel frattempo
+                        // i plot registrati durante il caricamento sono più recenti del file
+                        for (Entry e : all.subList(i, Math.min(all.size(), i + LOAD_CHUNK))) {
+                            TABLE.putIfAbsent(e);
+                        }
+                    }
+                }
+                System.out.println("[SMD][CACHE] " + loaded.size() + " plot caricati per " + next);
+            });
+        }
     }
 
-    /** Registra un plot (de-dup per plotId) */
-    public static synchronized void record(PlotInfo info) {
-        if (info == null) return;
-        recordBasic(info.proprietario, info.plotId, info.coordX, info.coordZ);
+    /** Registra un plot inviato con successo: nuovo, oppure aggiorna il fingerprint se è cambiato. */
+    public static void record(PlotInfo info) {
+        if (info == null || info.plotId == null || info.plotId.isBlank()) return;
+        String plotId = info.plotId.trim();
+        long fp = fingerprint(info);
+        // caso comune (plot già noto e invariato): nessun lock
+        Entry known = TABLE.get(plotId);
+        if (known != null && known.fingerprint == fp) return;
+        synchronized (PlotCacheManager.class) {
+            recordLocked(info, plotId, fp);
+        }
+    }
+
+    private static void recordLocked(PlotInfo info, String plotId, long fp) {
+        Entry existing = TABLE.get(plotId);
+        if (existing != null && existing.fingerprint == fp) return;
+
+        Entry e = new Entry(normalizeOwner(info.proprietario), plotId, info.coordX, info.coordZ);
+        e.dimension = info.dimension;
+        e.fingerprint = fp;
+        if (existing != null) e.firstSeenAtMs = existing.firstSeenAtMs;
+        TABLE.put(e);
+        persist(e);
     }
 
     /** Registra un plot minimale (usato anche per risultati remoti searchPlot) */
-    public static synchronized void recordBasic(String owner, String plotId, int coordX, int coordZ) {
+    public static void recordBasic(String owner, String plotId, int coordX, int coordZ) {
         if (plotId == null || plotId.isBlank()) return;
         String normalizedPlotId = plotId.trim();
+        // senza ultimo accesso non c'è un fingerprint: un plot già noto resta com'è
+        if (TABLE.contains(normalizedPlotId)) return;
 
-        String ownerOriginal = (owner == null || owner.isBlank()) ? UNKNOWN_OWNER : owner.trim();
-        String key = ownerOriginal.toLowerCase(Locale.ROOT);
-
-        List<Entry> list = BY_OWNER.computeIfAbsent(key, k -> new ArrayList<>());
+        Entry e = new Entry(normalizeOwner(owner), normalizedPlotId, coordX, coordZ);
+        synchronized (PlotCacheManager.class) {
+            if (!TABLE.putIfAbsent(e)) return;
+            persist(e);
+        }
+    }
 
-        list.removeIf(Objects::isNull);
-        for (Entry e : list) {
-            if (e != null && Objects.equals(e.plotId, normalizedPlotId)) return;
+    /**
+     * Confronta un plot riletto con l'ultimo invio.
+     * Per le voci senza fingerprint (arrivate da searchPlot) conta solo il proprietario.
+     */
+    public static Change classify(PlotInfo info) {
+        if (info == null || info.plotId == null || info.plotId.isBlank()) return Change.NEW;
+        Entry existing = TABLE.get(info.plotId.trim());
+        if (existing == null) return Change.NEW;
+        if (existing.fingerprint == 0L) {
+            return normalizeOwner(info.proprietario).equalsIgnoreCase(existing.owner) ? Change.UNCHANGED : Change.CHANGED;
         }
+        return existing.fingerprint == fingerprint(info) ? Change.UNCHANGED : Change.CHANGED;
+    }
+
+    /** FNV-1a 64 bit sui campi che il backend memorizza per il plot (mai 0). */
+    static long fingerprint(PlotInfo info) {
+        long h = 0xcbf29ce484222325L;
+        h = fnv(h, normalizeOwner(info.proprietario).toLowerCase(Locale.ROOT));
+        h = fnv(h, info.ultimoAccessoIso != null ? info.ultimoAccessoIso.trim() : "");
+        h = fnv(h, info.dimension != null ? info.dimension.trim().toLowerCase(Locale.ROOT) : "");
+        return h != 0L ? h : 1L;
+    }
 
-        list.add(new Entry(ownerOriginal, normalizedPlotId, coordX, coordZ));
-        PLOT_IDS.add(normalizedPlotId);
+    private static long fnv(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        // separatore tra i campi: ("ab","c") != ("a","bc")
+        h ^= 0xff;
+        h *= 0x100000001b3L;
+        return h;
     }
 
     /** Ritorna tutti i plot assegnati a un owner (cache locale) */
-    public static synchronized List<Entry> search(String owner) {
+    public static List<Entry> search(String owner) {
         if (owner == null) return Collections.emptyList();
-        String k = owner.trim().toLowerCase(Locale.ROOT);
-
-        List<Entry> list = BY_OWNER.get(k);
-        if (list == null) return Collections.emptyList();
 
-        List<Entry> out = new ArrayList<>(list);
+        List<Entry> out = TABLE.byOwner(owner.trim());
         out.sort(Comparator.comparing(a -> a.plotId));
         return out;
     }
 
+    /**
+     * I k plot in cache più vicini a (x, z) nella dimensione data, dal più vicino.
+     * owner null = tutti i proprietari.
+     */
+    public static List<Entry> nearest(int x, int z, String dimension, int k, String owner) {
+        return TABLE.nearest(x, z, dimension, k, 0, owner == null ? null : owner.trim());
+    }
+
+    /** Plot in cache più vicino a (x, z) entro radius blocchi, null se non ce ne sono. */
+    public static Entry nearestWithin(int x, int z, String dimension, int radius) {
+        if (radius <= 0) return null;
+        List<Entry> out = TABLE.nearest(x, z, dimension, 1, radius, null);
+        return out.isEmpty() ? null : out.get(0);
+    }
+
+    /** Plot in cache entro radius blocchi da (x, z) nella dimensione data, dal più vicino. */
+    public static List<Entry> withinRadius(int x, int z, String dimension, int radius, String owner) {
+        return TABLE.within(x, z, dimension, radius, owner == null ? null : owner.trim());
+    }
+
     /** Per TAB / suggerimenti */
-    public static synchronized List<String> getAllOwners() {
-        List<String> out = new ArrayList<>();
-        for (List<Entry> list : BY_OWNER.values()) {
-            if (list != null && !list.isEmpty()) {
-                list.removeIf(Objects::isNull);
-                if (list.isEmpty()) {
-                    continue;
-                }
-                String owner = list.get(0).owner;
-                if (owner != null && !owner.isBlank()) out.add(owner);
-            }
-        }
+    public static List<String> getAllOwners() {
+        List<String> out = TABLE.ownerNames();
+        out.removeIf(o -> o == null || o.isBlank());
         out.sort(String.CASE_INSENSITIVE_ORDER);
         return out;
     }
 
     /** Formatta SOLO: Nome + plotId + (x, z) */
-    public static synchronized String formatForChat(String owner) {
+    public static String formatForChat(String owner) {
         List<Entry> list = search(owner);
 
         StringBuilder sb = new StringBuilder();
@@ -124,28 +269,220 @@ public class PlotCacheManager {
     }
 
     /** Verifica se un plotId è già presente in cache (qualsiasi owner). */
-    public static synchronized boolean isPlotMapped(String plotId) {
+    public static boolean isPlotMapped(String plotId) {
         if (plotId == null || plotId.isBlank()) return false;
-        return PLOT_IDS.contains(plotId.trim());
+        return TABLE.contains(plotId.trim());
     }
 
     /** Verifica se un PlotInfo è già presente in cache (qualsiasi owner). */
-    public static synchronized boolean isPlotMapped(PlotInfo info) {
+    public static boolean isPlotMapped(PlotInfo info) {
         if (info == null) return false;
         return isPlotMapped(info.plotId);
     }
 
+    public static int size() {
+        return TABLE.size();
+    }
+
+    /** Svuota la cache del namespace corrente, anche su disco. */
     public static synchronized void clear() {
-        BY_OWNER.clear();
-        PLOT_IDS.clear();
-        clearPersistedCacheFile();
+        TABLE.clear();
+        unflushed = new ArrayList<>();
+        generation++;
+        Path file = namespaceFile;
+        if (file != null) {
+            DiskExecutor.run("cache", () -> {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (Exception ignored) {}
+            });
+        }
+    }
+
+    /** Scrive i plot in sospeso (uscita dal mondo/gioco). */
+    public static synchronized void flushPending() {
+        if (unflushed.isEmpty() || namespaceFile == null) return;
+        List<Entry> batch = unflushed;
+        unflushed = new ArrayList<>();
+        Path file = namespaceFile;
+        DiskExecutor.run("cache", () -> appendFile(file, batch));
+    }
+
+    // gira sul thread SMD-IO (coalesce)
+    private static void flushAsync() {
+        List<Entry> batch;
+        Path file;
+        synchronized (PlotCacheManager.class) {
+            if (unflushed.isEmpty() || namespaceFile == null) return;
+            batch = unflushed;
+            unflushed = new ArrayList<>();
+            file = namespaceFile;
+        }
+        appendFile(file, batch);
+    }
+
+    private static void persist(Entry e) {
+        if (namespaceFile == null) return;
+        unflushed.add(e);
+        DiskExecutor.coalesce("cache", FLUSH_COALESCE_MS, PlotCacheManager::flushAsync);
+    }
+
+    private static String normalizeOwner(String owner) {
+        return (owner == null || owner.isBlank()) ? UNKNOWN_OWNER : owner.trim();
+    }
+
+    private static void appendFile(Path file, List<Entry> batch) {
+        try {
+            Files.createDirectories(file.getParent());
+            boolean fresh = !Files.exists(file) || Files.size(file) == 0;
+            try (OutputStream raw = Files.newOutputStream(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(raw))) {
+                if (fresh) writeHeader(out);
+                for (Entry e : batch) writeRecord(out, e);
+            }
+        } catch (IOException e) {
+            System.out.println("[SMD][CACHE] Scrittura cache fallita: " + e.getMessage());
+        }
     }
 
-    private static void clearPersistedCacheFile() {
+    /** Riscrive il file con un record per plot (tmp + rename). */
+    private static void writeCompacted(Path file, Collection<Entry> entries) {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
         try {
-            Path cfgDir = FabricLoader.getInstance().getConfigDir();
-            Path file = cfgDir.resolve(FILE_NAME);
-            Files.deleteIfExists(file);
-        } catch (Exception ignored) {}
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                writeHeader(out);
+                for (Entry e : entries) writeRecord(out, e);
+            }
+            try {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.out.println("[SMD][CACHE] Compattazione cache fallita: " + e.getMessage());
+        }
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+    }
+
+    private static void writeRecord(DataOutputStream out, Entry e) throws IOException {
+        out.writeUTF(e.plotId);
+        out.writeUTF(UNKNOWN_OWNER.equals(e.owner) || e.owner == null ? "" : e.owner);
+        out.writeInt(e.coordX);
+        out.writeInt(e.coordZ);
+        out.writeLong(e.firstSeenAtMs);
+        out.writeLong(e.fingerprint);
+        out.writeUTF(e.dimension != null ? e.dimension : "");
+    }
+
+    /** Legge il file (gira sul thread SMD-IO): l'ultimo record per plotId vince. */
+    private static Collection<Entry> readFile(Path file) {
+        Map<String, Entry> out = new LinkedHashMap<>();
+        if (!Files.exists(file)) return out.values();
+        int records = 0;
+        boolean unsupported = false;
+        // byte letti e fine dell'ultimo record completo: se il file finisce a metà si taglia lì
+        long[] read = {0L};
+        long lastComplete = 0L;
+        boolean truncated = false;
+        try (InputStream raw = Files.newInputStream(file);
+             DataInputStream in = new DataInputStream(counting(new BufferedInputStream(raw), read))) {
+            int magic = in.readInt();
+            int version = in.readByte();
+            if (magic != MAGIC || version != VERSION) {
+                System.out.println("[SMD][CACHE] Formato cache non riconosciuto (versione " + version + "), riparte vuota: " + file.getFileName());
+                unsupported = true;
+            }
+            lastComplete = read[0];
+            while (!unsupported) {
+                Entry e = new Entry();
+                e.plotId = in.readUTF();
+                String owner = in.readUTF();
+                e.owner = owner.isEmpty() ? UNKNOWN_OWNER : owner;
+                e.coordX = in.readInt();
+                e.coordZ = in.readInt();
+                e.firstSeenAtMs = in.readLong();
+                e.fingerprint = in.readLong();
+                String dim = in.readUTF();
+                e.dimension = dim.isEmpty() ? null : dim;
+                out.remove(e.plotId);
+                out.put(e.plotId, e);
+                records++;
+                lastComplete = read[0];
+            }
+        } catch (EOFException eof) {
+            // fine file, oppure ultimo record (o header) troncato da una chiusura improvvisa
+            truncated = read[0] > lastComplete;
+        } catch (IOException e) {
+            System.out.println("[SMD][CACHE] Lettura cache fallita: " + e.getMessage());
+            return out.values();
+        }
+        if (unsupported) {
+            // gli append dopo un header estraneo non sarebbero mai riletti: file nuovo
+            writeCompacted(file, out.values());
+        } else if (truncated && !truncate(file, lastComplete)) {
+            // taglio non riuscito: la riscrittura compatta elimina comunque i byte parziali
+            writeCompacted(file, out.values());
+        } else if (records >= COMPACT_MIN_RECORDS && records > out.size() * 2) {
+            writeCompacted(file, out.values());
+        }
+        return out.values();
+    }
+
+    private static boolean truncate(Path file, long size) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size);
+            channel.force(true);
+            System.out.println("[SMD][CACHE] Record troncato rimosso da " + file.getFileName() + " (" + size + " byte validi)");
+            return true;
+        } catch (IOException e) {
+            System.out.println("[SMD][CACHE] Taglio del record troncato fallito: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Conta i byte consumati dal lettore (non quelli letti in anticipo dal buffer). */
+    private static InputStream counting(InputStream in, long[] count) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0) count[0]++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buf, int off, int len) throws IOException {
+                int n = super.read(buf, off, len);
+                if (n > 0) count[0] += n;
+                return n;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                long skipped = super.skip(n);
+                count[0] += skipped;
+                return skipped;
+            }
+        };
+    }
+
+    /** Server corrente (indirizzo, "singleplayer" o "offline"): parte del namespace. */
+    static String currentServerKey() {
+        MinecraftClient mc = MinecraftClient.getInstance();
+        if (mc == null) return "offline";
+        ServerInfo server = mc.getCurrentServerEntry();
+        if (server != null && server.address != null && !server.address.isBlank()) {
+            return server.address.trim().toLowerCase(Locale.ROOT);
+        }
+        return mc.isInSingleplayer() ? "singleplayer" : "offline";
+    }
+
+    private static String sanitize(String s) {
+        return s.replaceAll("[^A-Za-z0-9._@-]", "_");
     }
 }
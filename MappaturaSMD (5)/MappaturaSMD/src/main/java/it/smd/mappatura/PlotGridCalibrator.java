@@ -0,0 +1,457 @@
+package it.smd.mappatura;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Calibrazione automatica della griglia dei plot (PlotSquared) per dimensione.
+ *
+ * - Ogni PlotInfo "a;b" con coordinate è un campione: su ciascun asse coord = origine + id * passo + u,
+ *   con u dentro il plot. Il passo (plot + strada) è quello che minimizza l'ampiezza degli scarti
+ *   coord - id * passo, scartando il 5% dei campioni più lontani (coordinate prese in movimento).
+ * - Gli scarti osservati danno la parte di plot sicuramente interna; le risposte "non sei in un plot"
+ *   danno campioni di strada, da cui l'intervallo di strada su ogni asse.
+ * - Confidenza 0..1: passi ancora compatibili con i campioni (più di uno = ambiguo), numero di
+ *   campioni, strade che cadono dentro un plot.
+ *
+ * - Il fit (circa 500 passi x 2 ordinamenti per asse) gira su BackendExecutor su una copia dei
+ *   campioni: il thread del client aggiunge campioni e legge predizioni, il risultato viene
+ *   pubblicato sotto il lock quando è pronto (al massimo un fit in corso per dimensione).
+ * - Servono id "a;b": con id numerici (#123) la griglia non si ricava e la calibrazione è saltata
+ *   (describe() lo dice).
+ *
+ * Sopra MIN_CONFIDENCE predict() dice in O(1) plotId o strada di una posizione; con meno
+ * certezza ritorna null e si manda /plot info come sempre. Solo in memoria: si ricalibra a ogni
+ * JOIN, ripartendo dai plot in cache attorno al giocatore (seed).
+ */
+public final class PlotGridCalibrator {
+
+    public static final double MIN_CONFIDENCE = 0.9;
+
+    private static final int MIN_PITCH = 8;
+    private static final int MAX_PITCH = 512;
+    private static final int MAX_SAMPLES = 256;
+    private static final int MAX_ROAD_SAMPLES = 64;
+    private static final int MIN_CONFIDENT_SAMPLES = 12;
+    // scarti ignorati nel fit: coordinate lette mentre il giocatore cammina
+    private static final int OUTLIER_PERCENT = 5;
+    // nuovi campioni prima di rifare il fit (più spesso finché non è calibrata, ma almeno
+    // 1/16 dei campioni: con la tabella piena un fit costa qualche ms)
+    private static final int REFIT_EVERY_UNCALIBRATED = 2;
+    private static final int REFIT_EVERY_CALIBRATED = 16;
+    // margine dai bordi noti: vicino al confine tra plot e strada non si predice nulla
+    private static final int EDGE_MARGIN = 2;
+    // plotId letti di fila in contrasto con la griglia prima di buttare via la calibrazione
+    private static final int MAX_MISMATCHES = 3;
+
+    private static final Map<String, DimGrid> GRIDS = new HashMap<>();
+    // avvisato (da un thread di BackendExecutor) quando una dimensione diventa affidabile
+    private static volatile Consumer<String> onCalibrated;
+
+    private PlotGridCalibrator() {}
+
+    /** Esito di predict(): plotId certo, strada certa, oppure null (incerto). */
+    public static final class Prediction {
+        public final String plotId;
+        public final boolean road;
+
+        private Prediction(String plotId, boolean road) {
+            this.plotId = plotId;
+            this.road = road;
+        }
+    }
+
+    /** Risultato del fit su un asse. */
+    private static final class Axis {
+        int pitch;
+        long origin;     // scarto minimo osservato: u = coord - origin - id * pitch
+        int extent;      // u in [0, extent] è sicuramente plot
+        int feasible;    // passi compatibili con i campioni
+        int roadLo = -1; // u in [roadLo, roadHi] è sicuramente strada (-1 = sconosciuto)
+        int roadHi = -1;
+
+        int offset(long coord) {
+            return (int) Math.floorMod(coord - origin, (long) pitch);
+        }
+
+        long id(long coord) {
+            return Math.floorDiv(coord - origin, (long) pitch);
+        }
+    }
+
+    private static final class DimGrid {
+        final String key;
+        final int[] idX = new int[MAX_SAMPLES];
+        final int[] idZ = new int[MAX_SAMPLES];
+        final int[] cX = new int[MAX_SAMPLES];
+        final int[] cZ = new int[MAX_SAMPLES];
+        int count = 0;
+        int next = 0;
+        final int[] roadX = new int[MAX_ROAD_SAMPLES];
+        final int[] roadZ = new int[MAX_ROAD_SAMPLES];
+        int roadCount = 0;
+        int roadNext = 0;
+        int sinceFit = 0;
+        boolean fitting = false;
+        // plotId non "a;b" (id numerici): la griglia non si può ricavare
+        int unparsedIds = 0;
+        int mismatches = 0;
+        // contrasto con un plotId letto: niente predizioni finché una lettura non torna coerente
+        boolean suspended = false;
+        Axis ax;
+        Axis az;
+        double confidence = 0.0;
+        boolean announced = false;
+        boolean seeded = false;
+
+        DimGrid(String key) {
+            this.key = key;
+        }
+
+        boolean calibrated() {
+            return ax != null && az != null && confidence >= MIN_CONFIDENCE;
+        }
+    }
+
+    /** Copia dei campioni su cui gira un fit in background. */
+    private static final class FitInput {
+        final int[] idX;
+        final int[] idZ;
+        final int[] cX;
+        final int[] cZ;
+        final int count;
+        final int[] roadX;
+        final int[] roadZ;
+        final int roadCount;
+
+        FitInput(DimGrid g) {
+            idX = Arrays.copyOf(g.idX, g.count);
+            idZ = Arrays.copyOf(g.idZ, g.count);
+            cX = Arrays.copyOf(g.cX, g.count);
+            cZ = Arrays.copyOf(g.cZ, g.count);
+            count = g.count;
+            roadX = Arrays.copyOf(g.roadX, g.roadCount);
+            roadZ = Arrays.copyOf(g.roadZ, g.roadCount);
+            roadCount = g.roadCount;
+        }
+    }
+
+    /** Listener chiamato con la dimensione appena calibrata (fuori dal thread del client). */
+    public static void setOnCalibrated(Consumer<String> listener) {
+        onCalibrated = listener;
+    }
+
+    // ====== campioni ======
+
+    /** Campione da un plot letto; il fit parte in background quando ci sono abbastanza campioni nuovi. */
+    public static synchronized void addSample(PlotInfo info) {
+        if (info == null) return;
+        int[] id = parseId(info.plotId);
+        if (id == null) {
+            if (info.plotId != null && !info.plotId.isBlank()) noteUnparsed(grid(info.dimension), info.plotId);
+            return;
+        }
+        DimGrid g = grid(info.dimension);
+        addSample(g, id[0], id[1], info.coordX, info.coordZ);
+        maybeRefit(g);
+    }
+
+    /** Posizione in cui il server ha risposto "non sei in un plot". */
+    public static synchronized void addRoadSample(String dimension, int x, int z) {
+        DimGrid g = grid(dimension);
+        g.roadX[g.roadNext] = x;
+        g.roadZ[g.roadNext] = z;
+        g.roadNext = (g.roadNext + 1) % MAX_ROAD_SAMPLES;
+        if (g.roadCount < MAX_ROAD_SAMPLES) g.roadCount++;
+        g.sinceFit++;
+        maybeRefit(g);
+    }
+
+    /** Semina la dimensione con plot già in cache (una volta per dimensione e JOIN). */
+    public static synchronized void seed(String dimension, Iterable<PlotCacheManager.Entry> entries) {
+        DimGrid g = grid(dimension);
+        if (g.seeded) return;
+        g.seeded = true;
+        for (PlotCacheManager.Entry e : entries) {
+            int[] id = parseId(e.plotId);
+            if (id != null) {
+                addSample(g, id[0], id[1], e.coordX, e.coordZ);
+            } else if (e.plotId != null && !e.plotId.isBlank()) {
+                noteUnparsed(g, e.plotId);
+            }
+        }
+        maybeRefit(g);
+    }
+
+    public static synchronized boolean isSeeded(String dimension) {
+        DimGrid g = GRIDS.get(key(dimension));
+        return g != null && g.seeded;
+    }
+
+    public static synchronized void reset() {
+        GRIDS.clear();
+    }
+
+    // ====== predizioni ======
+
+    /** plotId (o strada) della posizione; null se la dimensione non è calibrata o la posizione è incerta. */
+    public static synchronized Prediction predict(String dimension, int x, int z) {
+        DimGrid g = GRIDS.get(key(dimension));
+        if (g == null || g.suspended) return null;
+        return predict(g, x, z);
+    }
+
+    private static Prediction predict(DimGrid g, int x, int z) {
+        if (!g.calibrated()) return null;
+        int ux = g.ax.offset(x);
+        int uz = g.az.offset(z);
+        if (inRoad(g.ax, ux) || inRoad(g.az, uz)) return new Prediction(null, true);
+        if (inPlot(g.ax, ux) && inPlot(g.az, uz)) {
+            return new Prediction(g.ax.id(x) + ";" + g.az.id(z), false);
+        }
+        return null;
+    }
+
+    /**
+     * Confronta il plotId letto con la griglia; il plot letto resta comunque valido.
+     * false = in contrasto con una predizione certa: le predizioni della dimensione si fermano
+     * subito e dopo MAX_MISMATCHES contrasti di fila la dimensione riparte da zero.
+     * Una lettura coerente riattiva le predizioni.
+     */
+    public static synchronized boolean verify(PlotInfo info) {
+        if (info == null || parseId(info.plotId) == null) return true;
+        DimGrid g = GRIDS.get(key(info.dimension));
+        if (g == null) return true;
+        Prediction p = predict(g, info.coordX, info.coordZ);
+        if (p == null || p.road) return true;
+        if (p.plotId.equals(info.plotId.trim())) {
+            g.mismatches = 0;
+            g.suspended = false;
+            return true;
+        }
+        g.suspended = true;
+        if (++g.mismatches >= MAX_MISMATCHES) {
+            System.out.println("[SMD][GRID] Troppi plotId fuori griglia in " + g.key + ", ricalibrazione.");
+            GRIDS.remove(g.key);
+        } else if (g.mismatches == 1) {
+            System.out.println("[SMD][GRID] plotId " + info.plotId.trim() + " fuori griglia in " + g.key + ", predizioni sospese.");
+        }
+        return false;
+    }
+
+    /** Una riga per dimensione, per /mappatura debug e il riepilogo coda. */
+    public static synchronized String describe(String dimension) {
+        DimGrid g = GRIDS.get(key(dimension));
+        if (g != null && g.count == 0 && g.unparsedIds > 0) {
+            return key(dimension) + " non calibrabile: id dei plot numerici (" + g.unparsedIds + "), servono id x;z";
+        }
+        if (g == null || g.ax == null || g.az == null) {
+            return key(dimension) + " non calibrata (" + (g != null ? g.count : 0) + " campioni"
+                    + (g != null && g.fitting ? ", fit in corso" : "") + ")";
+        }
+        return String.format(Locale.ROOT, "%s passo %dx%d, plot >= %dx%d, conf %.2f%s (%d campioni, %d strade)",
+                key(dimension), g.ax.pitch, g.az.pitch, g.ax.extent + 1, g.az.extent + 1, g.confidence,
+                !g.calibrated() ? " (non affidabile)" : g.suspended ? " (sospesa)" : "", g.count, g.roadCount);
+    }
+
+    // ====== fit ======
+
+    private static void addSample(DimGrid g, int idX, int idZ, int x, int z) {
+        g.idX[g.next] = idX;
+        g.idZ[g.next] = idZ;
+        g.cX[g.next] = x;
+        g.cZ[g.next] = z;
+        g.next = (g.next + 1) % MAX_SAMPLES;
+        if (g.count < MAX_SAMPLES) g.count++;
+        g.sinceFit++;
+    }
+
+    private static void noteUnparsed(DimGrid g, String plotId) {
+        if (g.unparsedIds++ == 0 && g.count == 0) {
+            System.out.println("[SMD][GRID] " + g.key + ": plotId non \"x;z\" (" + plotId.trim() + "), calibrazione saltata.");
+        }
+    }
+
+    /** Fa partire un fit in background se servono (chiamare con il lock). */
+    private static void maybeRefit(DimGrid g) {
+        int every = g.calibrated() ? REFIT_EVERY_CALIBRATED : Math.max(REFIT_EVERY_UNCALIBRATED, g.count / 16);
+        if (g.fitting || g.sinceFit < every) return;
+        g.sinceFit = 0;
+        g.fitting = true;
+        FitInput in = new FitInput(g);
+        try {
+            BackendExecutor.submit("gridFit", () -> fit(g, in));
+        } catch (RejectedExecutionException e) {
+            // pool pieno: si riprova al prossimo campione
+            g.fitting = false;
+            g.sinceFit = every;
+        }
+    }
+
+    /** Fit sulla copia dei campioni (thread di BackendExecutor), pubblicato sotto il lock. */
+    private static void fit(DimGrid g, FitInput in) {
+        Axis ax = null;
+        Axis az = null;
+        double confidence = 0.0;
+        try {
+            ax = fitAxis(in.idX, in.cX, in.count);
+            az = fitAxis(in.idZ, in.cZ, in.count);
+            confidence = ax != null && az != null ? score(ax, az, in) : 0.0;
+        } catch (RuntimeException e) {
+            System.out.println("[SMD][GRID] Fit fallito in " + g.key + ": " + e.getMessage());
+            ax = az = null;
+            confidence = 0.0;
+        }
+        boolean notify;
+        synchronized (PlotGridCalibrator.class) {
+            g.fitting = false;
+            // reset o ricalibrazione nel frattempo: il risultato è di una griglia scartata
+            if (GRIDS.get(g.key) != g) return;
+            boolean was = g.calibrated();
+            g.ax = ax;
+            g.az = az;
+            g.confidence = confidence;
+            boolean now = g.calibrated();
+            if (now && !g.announced) {
+                g.announced = true;
+                System.out.println("[SMD][GRID] Calibrata: " + describeAxes(g));
+            }
+            notify = now && !was;
+        }
+        Consumer<String> listener = onCalibrated;
+        if (notify && listener != null) listener.accept(g.key);
+    }
+
+    private static String describeAxes(DimGrid g) {
+        return String.format(Locale.ROOT, "passo %dx%d, conf %.2f", g.ax.pitch, g.az.pitch, g.confidence);
+    }
+
+    /**
+     * Passo che minimizza l'ampiezza degli scarti coord - id * passo, tolto fino al 5% di outlier.
+     * Poi l'ambiguità: quanti passi restano compatibili (ampiezza < passo) togliendo solo gli
+     * outlier veri del passo migliore, non il 5% intero (che taglierebbe gli id estremi).
+     */
+    private static Axis fitAxis(int[] ids, int[] coords, int n) {
+        if (n < 2) return null;
+        int minId = Integer.MAX_VALUE;
+        int maxId = Integer.MIN_VALUE;
+        for (int i = 0; i < n; i++) {
+            minId = Math.min(minId, ids[i]);
+            maxId = Math.max(maxId, ids[i]);
+        }
+        if (minId == maxId) return null;
+
+        long[] r = new long[n];
+        int keep = n - (n * OUTLIER_PERCENT) / 100;
+        Axis best = null;
+        long bestWidth = Long.MAX_VALUE;
+        for (int pitch = MIN_PITCH; pitch <= MAX_PITCH; pitch++) {
+            long[] window = narrowestWindow(ids, coords, n, pitch, keep, r);
+            // serve almeno un blocco di strada tra due plot
+            if (window[1] >= pitch - 1 || window[1] >= bestWidth) continue;
+            bestWidth = window[1];
+            best = new Axis();
+            best.pitch = pitch;
+            best.origin = window[0];
+            best.extent = (int) window[1];
+        }
+        if (best == null) return null;
+
+        int inliers = 0;
+        for (int i = 0; i < n; i++) {
+            long u = coords[i] - (long) ids[i] * best.pitch - best.origin;
+            if (u >= 0 && u <= best.extent) inliers++;
+        }
+        int feasible = 0;
+        for (int pitch = MIN_PITCH; pitch <= MAX_PITCH; pitch++) {
+            if (narrowestWindow(ids, coords, n, pitch, inliers, r)[1] < pitch - 1) feasible++;
+        }
+        best.feasible = Math.max(1, feasible);
+        return best;
+    }
+
+    /** {inizio, ampiezza} della finestra più stretta che contiene keep scarti con questo passo. */
+    private static long[] narrowestWindow(int[] ids, int[] coords, int n, int pitch, int keep, long[] r) {
+        for (int i = 0; i < n; i++) r[i] = coords[i] - (long) ids[i] * pitch;
+        Arrays.sort(r, 0, n);
+        long width = Long.MAX_VALUE;
+        long lo = 0;
+        for (int i = 0; i + keep - 1 < n; i++) {
+            long w = r[i + keep - 1] - r[i];
+            if (w < width) {
+                width = w;
+                lo = r[i];
+            }
+        }
+        return new long[] { lo, width };
+    }
+
+    /**
+     * Confidenza: 1 / passi compatibili (per asse), scalata dal numero di campioni;
+     * ogni strada che cade nella parte sicura di un plot la abbassa. Calcola anche
+     * gli intervalli di strada.
+     */
+    private static double score(Axis ax, Axis az, FitInput in) {
+        double c = (1.0 / ax.feasible) * (1.0 / az.feasible);
+        c *= Math.min(1.0, in.count / (double) MIN_CONFIDENT_SAMPLES);
+
+        int contradictions = 0;
+        for (int i = 0; i < in.roadCount; i++) {
+            int ux = ax.offset(in.roadX[i]);
+            int uz = az.offset(in.roadZ[i]);
+            boolean plotX = ux <= ax.extent;
+            boolean plotZ = uz <= az.extent;
+            if (plotX && plotZ) {
+                contradictions++;
+            } else if (plotZ) {
+                // dentro il plot su Z: la strada è sull'asse X
+                widenRoad(ax, ux);
+            } else if (plotX) {
+                widenRoad(az, uz);
+            }
+            // fuori su entrambi gli assi (incrocio): non dice quale asse è strada
+        }
+        if (in.roadCount > 0) c *= 1.0 - contradictions / (double) in.roadCount;
+        return c;
+    }
+
+    private static void widenRoad(Axis a, int u) {
+        if (a.roadLo < 0 || u < a.roadLo) a.roadLo = u;
+        if (a.roadHi < 0 || u > a.roadHi) a.roadHi = u;
+    }
+
+    private static boolean inPlot(Axis a, int u) {
+        return u >= EDGE_MARGIN && u <= a.extent - EDGE_MARGIN;
+    }
+
+    private static boolean inRoad(Axis a, int u) {
+        return a.roadLo >= 0 && u >= a.roadLo && u <= a.roadHi;
+    }
+
+    // ====== supporto ======
+
+    private static DimGrid grid(String dimension) {
+        return GRIDS.computeIfAbsent(key(dimension), DimGrid::new);
+    }
+
+    private static String key(String dimension) {
+        return dimension == null || dimension.isBlank() ? "overworld" : dimension.trim();
+    }
+
+    /** "a;b" -> {a, b}; null per id numerici (#123) o malformati: quei plot non calibrano. */
+    private static int[] parseId(String plotId) {
+        if (plotId == null) return null;
+        String s = plotId.trim();
+        int sep = s.indexOf(';');
+        if (sep <= 0 || sep == s.length() - 1) return null;
+        try {
+            return new int[] { Integer.parseInt(s.substring(0, sep).trim()), Integer.parseInt(s.substring(sep + 1).trim()) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
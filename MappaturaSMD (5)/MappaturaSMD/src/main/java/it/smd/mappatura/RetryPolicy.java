@@ -0,0 +1,128 @@
+package it.smd.mappatura;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Politica di retry unica: tentativi massimi, scadenza per singolo elemento,
+ * backoff esponenziale con jitter e budget globale dei retry.
+ *
+ * Il budget è condiviso da tutte le politiche: ogni primo tentativo deposita
+ * BUDGET_RATIO token, ogni retry ne consuma uno. Così i retry restano al massimo
+ * ~BUDGET_RATIO del traffico (più un piccolo margine iniziale) anche con il backend degradato.
+ * A budget finito non si rinuncia: il retry viene rimandato di maxDelayMs (con jitter) e non
+ * conta come tentativo. Solo i tentativi esauriti o la scadenza fanno arrendere.
+ */
+public final class RetryPolicy {
+
+    /** Invii plot (SubmitPlotQueue): unico livello di retry, il client fa un solo tentativo. */
+    public static final RetryPolicy SUBMIT = new RetryPolicy("submit", 5, 750L, 30_000L, 10 * 60_000L);
+    /** Chiamate interattive (checkAccess, searchPlot, whitelistRequest): nessun retry. */
+    public static final RetryPolicy SINGLE = new RetryPolicy("single", 1, 0L, 0L, 0L);
+
+    private static final double BUDGET_RATIO = 0.2;
+    private static final double BUDGET_MAX_TOKENS = 20.0;
+
+    private static double budgetTokens = BUDGET_MAX_TOKENS;
+    private static long budgetDenied = 0L;
+
+    private final String name;
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final long deadlineMs;
+
+    /** Esito di {@link #decide(int, long)}. */
+    public static final class Decision {
+        public final boolean retry;
+        public final long delayMs;
+        public final String reason;
+        // false = retry rimandato per budget: il numero del tentativo non avanza
+        public final boolean countsAttempt;
+
+        private Decision(boolean retry, long delayMs, String reason, boolean countsAttempt) {
+            this.retry = retry;
+            this.delayMs = delayMs;
+            this.reason = reason;
+            this.countsAttempt = countsAttempt;
+        }
+    }
+
+    public RetryPolicy(String name, int maxAttempts, long baseDelayMs, long maxDelayMs, long deadlineMs) {
+        this.name = name;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.baseDelayMs = Math.max(0L, baseDelayMs);
+        this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+        this.deadlineMs = deadlineMs;
+    }
+
+    public int maxAttempts() {
+        return maxAttempts;
+    }
+
+    public static boolean isRetryableStatus(int status) {
+        return status == 429 || status >= 500;
+    }
+
+    /** Da chiamare per ogni primo tentativo (non per i retry): alimenta il budget. */
+    public static synchronized void recordFirstAttempt() {
+        budgetTokens = Math.min(BUDGET_MAX_TOKENS, budgetTokens + BUDGET_RATIO);
+    }
+
+    /**
+     * Decide se ritentare dopo il tentativo numero {@code attempt} (1-based) fallito.
+     * Se sì, consuma un token del budget globale; senza token il retry è rimandato
+     * (countsAttempt = false) invece di essere negato.
+     */
+    public Decision decide(int attempt, long firstAttemptAtMs) {
+        if (attempt >= maxAttempts) {
+            return new Decision(false, -1L, "tentativi esauriti", true);
+        }
+        long delay = backoffWithJitter(attempt);
+        long leftMs = deadlineMs > 0 && firstAttemptAtMs > 0
+                ? deadlineMs - (System.currentTimeMillis() - firstAttemptAtMs)
+                : Long.MAX_VALUE;
+        if (delay > leftMs) {
+            return new Decision(false, -1L, "scadenza superata", true);
+        }
+        if (!tryConsumeBudget()) {
+            // si rallenta fino al tetto del backoff, senza superare la scadenza
+            long wait = Math.min(Math.max(delay, jitter(maxDelayMs)), leftMs);
+            return new Decision(true, wait, "budget retry esaurito", false);
+        }
+        return new Decision(true, delay, null, true);
+    }
+
+    /**
+     * Backoff esponenziale con jitter: metà del ritardo è fissa, l'altra metà casuale,
+     * così gli elementi falliti insieme non ripartono tutti nello stesso istante.
+     */
+    private long backoffWithJitter(int attempt) {
+        return jitter(Math.min(maxDelayMs, baseDelayMs * (1L << Math.min(20, Math.max(0, attempt - 1)))));
+    }
+
+    private static long jitter(long base) {
+        long half = base / 2;
+        return half + ThreadLocalRandom.current().nextLong(half + 1);
+    }
+
+    private static synchronized boolean tryConsumeBudget() {
+        if (budgetTokens < 1.0) {
+            budgetDenied++;
+            return false;
+        }
+        budgetTokens -= 1.0;
+        return true;
+    }
+
+    /** Riga leggibile per /mappatura debug. */
+    public static synchronized String describeBudget() {
+        return "budget retry " + String.format(Locale.ROOT, "%.1f", budgetTokens) + "/" + (int) BUDGET_MAX_TOKENS
+                + " (" + Math.round(BUDGET_RATIO * 100) + "% del traffico), negati " + budgetDenied;
+    }
+
+    @Override
+    public String toString() {
+        return name + "(max " + maxAttempts + ", scadenza " + (deadlineMs / 1000) + "s)";
+    }
+}
@@ -0,0 +1,164 @@
+package it.smd.mappatura;
+
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Codifica dei body submitPlot / submitPlotBatch direttamente in byte.
+ *
+ * - L'envelope (publish_code, operator_name, operator_uuid) non cambia durante la sessione:
+ *   viene serializzato una volta e ricostruito solo se uno dei tre valori cambia.
+ * - plot_data viene scritto con JsonWriter in un buffer riusato per thread; i byte
+ *   risultanti restano nel SubmitTask e sono riusati identici a ogni retry.
+ * - gzip opzionale per i body batch (Content-Encoding: gzip).
+ * - idempotency_key dentro plot_data: nei batch ogni plot porta la sua.
+ */
+public final class SubmitPayloadEncoder {
+
+    private static final byte[] PLOT_DATA_FIELD = "\"plot_data\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] PLOTS_FIELD = "\"plots\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLOSE_OBJECT = "}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CLOSE_ARRAY_OBJECT = "]}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] COMMA = ",".getBytes(StandardCharsets.UTF_8);
+    // sotto questa soglia gzip non conviene
+    private static final int GZIP_MIN_BYTES = 1024;
+
+    private static final ThreadLocal<ByteArrayOutputStream> BUFFER =
+            ThreadLocal.withInitial(() -> new ByteArrayOutputStream(256));
+
+    private static Envelope cachedEnvelope;
+
+    private SubmitPayloadEncoder() {}
+
+    private static final class Envelope {
+        private final String publishCode;
+        private final String operatorName;
+        private final String operatorUuid;
+        // "{...campi envelope...," pronto per l'ultimo campo
+        private final byte[] prefix;
+
+        private Envelope(String publishCode, String operatorName, String operatorUuid) {
+            this.publishCode = publishCode;
+            this.operatorName = operatorName;
+            this.operatorUuid = operatorUuid;
+
+            JsonObject body = new JsonObject();
+            body.addProperty("publish_code", publishCode);
+            body.addProperty("operator_name", operatorName);
+            if (operatorUuid != null && !operatorUuid.isBlank()) {
+                body.addProperty("operator_uuid", operatorUuid);
+            }
+            String json = body.toString();
+            this.prefix = (json.substring(0, json.length() - 1) + ",").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private boolean matches(String publishCode, String operatorName, String operatorUuid) {
+            return Objects.equals(this.publishCode, publishCode)
+                    && Objects.equals(this.operatorName, operatorName)
+                    && Objects.equals(this.operatorUuid, operatorUuid);
+        }
+    }
+
+    /** Serializza plot_data una sola volta. */
+    public static byte[] encodePlot(PlotInfo info, AppConfig cfg) {
+        return encodePlot(info, cfg, false, null);
+    }
+
+    /**
+     * Come sopra; update = plot già inviato i cui dati sono cambiati ("update": true),
+     * idempotencyKey = chiave del task (null = nessuna).
+     */
+    public static byte[] encodePlot(PlotInfo info, AppConfig cfg, boolean update, String idempotencyKey) {
+        ByteArrayOutputStream buf = BUFFER.get();
+        buf.reset();
+        try {
+            JsonWriter w = new JsonWriter(new OutputStreamWriter(buf, StandardCharsets.UTF_8));
+            w.beginObject();
+            w.name("plot_id").value(info.plotId);
+            w.name("coord_x").value(info.coordX);
+            w.name("coord_z").value(info.coordZ);
+            if (info.dimension != null && !info.dimension.isBlank()) {
+                w.name("dimension").value(info.dimension);
+            } else if (cfg != null && cfg.dimensionDefault != null && !cfg.dimensionDefault.isBlank()) {
+                w.name("dimension").value(cfg.dimensionDefault);
+            }
+            if (info.proprietario != null) w.name("proprietario").value(info.proprietario);
+            if (info.ultimoAccessoIso != null) w.name("ultimo_accesso").value(info.ultimoAccessoIso);
+            if (update) w.name("update").value(true);
+            if (idempotencyKey != null) w.name("idempotency_key").value(idempotencyKey);
+            w.endObject();
+            w.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return buf.toByteArray();
+    }
+
+    /** Body submitPlot: envelope + "plot_data": plot. */
+    public static byte[] single(String publishCode, byte[] plotData) {
+        byte[] prefix = envelope(publishCode).prefix;
+        byte[] out = new byte[prefix.length + PLOT_DATA_FIELD.length + plotData.length + CLOSE_OBJECT.length];
+        int pos = copy(prefix, out, 0);
+        pos = copy(PLOT_DATA_FIELD, out, pos);
+        pos = copy(plotData, out, pos);
+        copy(CLOSE_OBJECT, out, pos);
+        return out;
+    }
+
+    /** Body submitPlotBatch: envelope + "plots": [plot, plot, ...]. */
+    public static byte[] batch(String publishCode, List<byte[]> plots) {
+        byte[] prefix = envelope(publishCode).prefix;
+        int size = prefix.length + PLOTS_FIELD.length + CLOSE_ARRAY_OBJECT.length;
+        for (byte[] p : plots) size += p.length;
+        size += Math.max(0, plots.size() - 1) * COMMA.length;
+
+        byte[] out = new byte[size];
+        int pos = copy(prefix, out, 0);
+        pos = copy(PLOTS_FIELD, out, pos);
+        for (int i = 0; i < plots.size(); i++) {
+            if (i > 0) pos = copy(COMMA, out, pos);
+            pos = copy(plots.get(i), out, pos);
+        }
+        copy(CLOSE_ARRAY_OBJECT, out, pos);
+        return out;
+    }
+
+    public static boolean worthCompressing(byte[] body) {
+        return body != null && body.length >= GZIP_MIN_BYTES;
+    }
+
+    public static byte[] gzip(byte[] body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(body);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    private static synchronized Envelope envelope(String publishCode) {
+        String name = SubmitPlotClient.getOperatorName();
+        String uuid = SubmitPlotClient.getOperatorUuid();
+        Envelope env = cachedEnvelope;
+        if (env == null || !env.matches(publishCode, name, uuid)) {
+            env = new Envelope(publishCode, name, uuid);
+            cachedEnvelope = env;
+        }
+        return env;
+    }
+
+    private static int copy(byte[] src, byte[] dst, int pos) {
+        System.arraycopy(src, 0, dst, pos, src.length);
+        return pos + src.length;
+    }
+}
@@ -7,14 +7,28 @@ import net.minecraft.client.MinecraftClient;
 import net.minecraft.text.Text;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
@@ -22,7 +36,7 @@ import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 /**
- * SubmitPlotClient (Java 17 / Fabric)
+ * SubmitPlotClient (Java 21 / Fabric)
  *
  * Questo file è pensato per essere "drop-in": contiene TUTTI i metodi
  * referenziati dagli altri file del progetto (submitAsync, searchPlotAsync,
@@ -37,16 +51,31 @@ public class SubmitPlotClient {
 
     // ====== Config ======
     private static final Gson GSON = new Gson();
-    private static final HttpClient HTTP = HttpClient.newBuilder()
-            .connectTimeout(Duration.ofSeconds(10))
-            .followRedirects(HttpClient.Redirect.NORMAL)
-            .version(HttpClient.Version.HTTP_1_1)
-            .build();
+    // client creati al primo uso con la versione HTTP del config (httpUseHttp2)
+    private static volatile HttpClient HTTP;
     private static volatile HttpClient INSECURE_HTTP;
+    private static volatile SSLContext INSECURE_SSL;
+    // host con certificato non valido: vanno diretti sul client insicuro fino alla scadenza
+    private static final ConcurrentHashMap<String, Long> INSECURE_HOSTS = new ConcurrentHashMap<>();
+    private static final long INSECURE_HOST_RECHECK_MS = 30 * 60_000L;
+    // keep-alive: sotto l'idle timeout tipico dei proxy (60s) la connessione resta aperta
+    private static final long KEEP_ALIVE_IDLE_MS = 25_000L;
+    private static volatile long lastTrafficAtMs = 0L;
+    private static volatile boolean keepAliveInFlight = false;
 
     private static final Duration REQ_TIMEOUT = Duration.ofSeconds(15);
-    private static final int MAX_RETRIES = 3;
-    private static final long RETRY_BASE_DELAY_MS = 500;
+    // se il backend non espone submitPlotBatch, riprova solo dopo questo intervallo
+    private static final long BATCH_UNSUPPORTED_RECHECK_MS = 10 * 60_000L;
+    // errori con cui il backend segnala un Idempotency-Key già elaborato
+    private static final Set<String> ALREADY_PROCESSED_ERRORS = Set.of("ALREADY_PROCESSED", "DUPLICATE_REQUEST", "IDEMPOTENT_REPLAY");
+
+    private static volatile long batchUnsupportedUntilMs = 0L;
+    // il backend ha rifiutato Content-Encoding: gzip (415): niente compressione fino al riavvio
+    private static volatile boolean gzipUnsupported = false;
+
+    // 5 errori consecutivi (rete/5xx) aprono il circuito: 5s, poi fino a 60s tra una probe e l'altra
+    private static final CircuitBreaker BREAKER = new CircuitBreaker("backend", 5, 5_000L, 60_000L);
+    private static final Duration PROBE_TIMEOUT = Duration.ofSeconds(5);
 
     // ====== Models ======
     public static final class AuthResult {
@@ -69,6 +98,14 @@ public class SubmitPlotClient {
         public int httpStatus;
     }
 
+    public static final class BatchSubmitResult {
+        public boolean success;
+        public List<SubmitResult> results;
+        public String error;
+        public JsonObject debug;
+        public int httpStatus;
+    }
+
     public static final class SearchResult {
         public boolean success;
         public String used_publish_code;
@@ -115,6 +152,7 @@ public class SubmitPlotClient {
         while (s.endsWith("/")) s = s.substring(0, s.length() - 1);
         // se arriva un endpoint completo (/functions/submitPlot o simili), ricava il base
         String[] suffixes = {
+                "/functions/submitPlotBatch",
                 "/functions/submitPlot",
                 "/functions/checkAccess",
                 "/functions/searchPlot",
@@ -145,6 +183,10 @@ public class SubmitPlotClient {
         return normalizeUrl(endpointBase) + "/functions/submitPlot";
     }
 
+    public static String deriveSubmitPlotBatchUrl(String endpointBase) {
+        return normalizeUrl(endpointBase) + "/functions/submitPlotBatch";
+    }
+
     public static String deriveWhitelistRequestUrl(String endpointBase) {
         return normalizeUrl(endpointBase) + "/functions/whitelistRequest";
     }
@@ -155,11 +197,11 @@ public class SubmitPlotClient {
      * Overload usato in MappaturaSMDClient / MappaturaScreen:
      * checkAccessAsync(publishCode, cb)
      */
-    public static void checkAccessAsync(String publishCode, Consumer<AuthResult> cb) {
+    public static Future<?> checkAccessAsync(String publishCode, Consumer<AuthResult> cb) {
         String base = getNormalizedEndpoint();
         if (base.isBlank()) {
             if (cb != null) cb.accept(null);
-            return;
+            return CompletableFuture.completedFuture(null);
         }
         String url = deriveCheckAccessUrl(base);
 
@@ -167,35 +209,35 @@ public class SubmitPlotClient {
         addOperatorInfo(body);
         if (publishCode != null && !publishCode.isBlank()) body.addProperty("publish_code", publishCode);
 
-        postJson(url, body, AuthResult.class, cb);
+        return postJson(url, body, AuthResult.class, cb);
     }
 
     /**
      * Overload comodo: senza publish_code
      */
-    public static void checkAccessAsync(Consumer<AuthResult> cb) {
-        checkAccessAsync(null, cb);
+    public static Future<?> checkAccessAsync(Consumer<AuthResult> cb) {
+        return checkAccessAsync(null, cb);
     }
 
-    public static void requestWhitelistAsync(Consumer<WhitelistRequestResult> cb) {
+    public static Future<?> requestWhitelistAsync(Consumer<WhitelistRequestResult> cb) {
         String base = getNormalizedEndpoint();
         if (base.isBlank()) {
             if (cb != null) cb.accept(null);
-            return;
+            return CompletableFuture.completedFuture(null);
         }
         String url = deriveWhitelistRequestUrl(base);
 
         JsonObject body = new JsonObject();
         addOperatorInfo(body);
 
-        postJson(url, body, WhitelistRequestResult.class, cb);
+        return postJson(url, body, WhitelistRequestResult.class, cb);
     }
 
-    public static void searchPlotAsync(String nome, Consumer<SearchResult> cb) {
+    public static Future<?> searchPlotAsync(String nome, Consumer<SearchResult> cb) {
         String base = getNormalizedEndpoint();
         if (base.isBlank()) {
             if (cb != null) cb.accept(null);
-            return;
+            return CompletableFuture.completedFuture(null);
         }
         String url = deriveSearchPlotUrl(base);
 
@@ -208,14 +250,44 @@ public class SubmitPlotClient {
         body.addProperty("search_query", nome);
         if (publishCode != null && !publishCode.isBlank()) body.addProperty("publish_code", publishCode);
 
-        postJson(url, body, SearchResult.class, cb);
+        return postJson(url, body, SearchResult.class, cb);
     }
 
-    public static void submitAsync(PlotInfo info, Consumer<SubmitResult> ok, Consumer<String> err) {
+    public static Future<?> submitAsync(PlotInfo info, Consumer<SubmitResult> ok, Consumer<String> err) {
+        return submitFuture(info).thenAccept(r -> dispatchToMainThread(() -> {
+            if (!r.success) {
+                if (err != null) err.accept(r.error != null ? r.error : "SUBMIT_FAILED");
+                return;
+            }
+            if (ok != null) ok.accept(r);
+        }));
+    }
+
+    /**
+     * Invio non bloccante via HttpClient.sendAsync: nessun thread resta fermo
+     * durante la richiesta o l'attesa tra un retry e l'altro.
+     * Il future non fallisce mai: gli errori diventano SubmitResult con success=false.
+     */
+    public static CompletableFuture<SubmitResult> submitFuture(PlotInfo info) {
+        return submitEncodedFuture(SubmitPayloadEncoder.encodePlot(info, ConfigManager.get()));
+    }
+
+    /**
+     * Come {@link #submitFuture(PlotInfo)}, ma con plot_data già serializzato
+     * (SubmitPayloadEncoder.encodePlot): i retry riusano gli stessi byte.
+     */
+    public static CompletableFuture<SubmitResult> submitEncodedFuture(byte[] plotData) {
+        return submitEncodedFuture(plotData, null);
+    }
+
+    /**
+     * Con idempotencyKey (header Idempotency-Key) il backend può riconoscere un reinvio
+     * dello stesso task; la risposta "già elaborato" vale come successo.
+     */
+    public static CompletableFuture<SubmitResult> submitEncodedFuture(byte[] plotData, String idempotencyKey) {
         String base = getNormalizedEndpoint();
         if (base.isBlank()) {
-            if (err != null) err.accept("ENDPOINT_MISSING");
-            return;
+            return CompletableFuture.completedFuture(errorResult("ENDPOINT_MISSING"));
         }
         String url = deriveSubmitPlotUrl(base);
 
@@ -223,86 +295,169 @@ public class SubmitPlotClient {
         String publishCode = cfg != null ? cfg.sessionCode : null;
 
         if (publishCode == null || publishCode.isBlank()) {
-            if (err != null) err.accept("SESSION_CODE_MISSING");
-            return;
+            return CompletableFuture.completedFuture(errorResult("SESSION_CODE_MISSING"));
         }
 
-        JsonObject plot = new JsonObject();
-        plot.addProperty("plot_id", info.plotId);
-        plot.addProperty("coord_x", info.coordX);
-        plot.addProperty("coord_z", info.coordZ);
-        if (info.dimension != null && !info.dimension.isBlank()) {
-            plot.addProperty("dimension", info.dimension);
-        } else if (cfg != null && cfg.dimensionDefault != null && !cfg.dimensionDefault.isBlank()) {
-            plot.addProperty("dimension", cfg.dimensionDefault);
-        }
-        if (info.proprietario != null) plot.addProperty("proprietario", info.proprietario);
-        if (info.ultimoAccessoIso != null) plot.addProperty("ultimo_accesso", info.ultimoAccessoIso);
+        byte[] body = SubmitPayloadEncoder.single(publishCode, plotData);
 
-        JsonObject body = new JsonObject();
-        body.addProperty("publish_code", publishCode);
-        addOperatorInfo(body);
-        body.add("plot_data", plot);
+        // un solo tentativo: i retry sono decisi da SubmitPlotQueue con RetryPolicy.SUBMIT
+        return postJsonAsync(url, body, false, idempotencyKey, SubmitResult.class, RetryPolicy.SINGLE)
+                .thenApply(r -> r != null ? acceptAlreadyProcessed(r) : errorResult("NETWORK_ERROR"));
+    }
 
-        postJsonWithRetry(url, body, SubmitResult.class, r -> {
-            if (r == null) {
-                if (err != null) err.accept("NETWORK_ERROR");
-                return;
-            }
-            if (!r.success) {
-                if (err != null) err.accept(r.error != null ? r.error : "SUBMIT_FAILED");
-                return;
-            }
-            if (ok != null) ok.accept(r);
-        });
+    /**
+     * Invio di più plot in un'unica richiesta (POST /functions/submitPlotBatch).
+     * Completa con un risultato per ogni plot, nello stesso ordine di {@code infos}.
+     *
+     * Completa con null se il backend non supporta il batch (404/405/501 o risposta
+     * senza "results" allineati): in quel caso il chiamante ripiega sugli invii singoli.
+     */
+    public static CompletableFuture<List<SubmitResult>> submitBatchFuture(List<PlotInfo> infos) {
+        if (infos == null || infos.isEmpty()) return CompletableFuture.completedFuture(new ArrayList<>());
+        AppConfig cfg = ConfigManager.get();
+        List<byte[]> plots = new ArrayList<>(infos.size());
+        for (PlotInfo info : infos) {
+            plots.add(SubmitPayloadEncoder.encodePlot(info, cfg));
+        }
+        return submitBatchEncodedFuture(plots);
+    }
+
+    /**
+     * Come {@link #submitBatchFuture(List)}, ma con plot_data già serializzati.
+     * Con submitGzipBatch attivo il body viene compresso (Content-Encoding: gzip);
+     * se il backend risponde 415 la compressione viene disattivata per la sessione
+     * e si completa con null, così il chiamante reinvia senza gzip.
+     */
+    public static CompletableFuture<List<SubmitResult>> submitBatchEncodedFuture(List<byte[]> plots) {
+        return submitBatchEncodedFuture(plots, null);
     }
 
     /**
-     * Variante bloccante: usa la coda background per invii istantanei.
-     * Da NON chiamare dal render thread.
+     * Le chiavi dei singoli plot sono già in plot_data; l'header Idempotency-Key del batch
+     * è derivato dalle chiavi, quindi lo stesso gruppo reinviato ha la stessa chiave.
      */
-    public static SubmitResult submitBlocking(PlotInfo info) {
+    public static CompletableFuture<List<SubmitResult>> submitBatchEncodedFuture(List<byte[]> plots, List<String> idempotencyKeys) {
+        if (plots == null || plots.isEmpty()) return CompletableFuture.completedFuture(new ArrayList<>());
+        int count = plots.size();
+        if (!isBatchSupported()) return CompletableFuture.completedFuture(null);
+
         String base = getNormalizedEndpoint();
         if (base.isBlank()) {
-            return errorResult("ENDPOINT_MISSING");
+            return CompletableFuture.completedFuture(replicateError(count, errorResult("ENDPOINT_MISSING")));
         }
-        String url = deriveSubmitPlotUrl(base);
+        String url = deriveSubmitPlotBatchUrl(base);
 
         AppConfig cfg = ConfigManager.get();
         String publishCode = cfg != null ? cfg.sessionCode : null;
 
         if (publishCode == null || publishCode.isBlank()) {
-            return errorResult("SESSION_CODE_MISSING");
+            return CompletableFuture.completedFuture(replicateError(count, errorResult("SESSION_CODE_MISSING")));
         }
 
-        JsonObject plot = new JsonObject();
-        plot.addProperty("plot_id", info.plotId);
-        plot.addProperty("coord_x", info.coordX);
-        plot.addProperty("coord_z", info.coordZ);
-        if (info.dimension != null && !info.dimension.isBlank()) {
-            plot.addProperty("dimension", info.dimension);
-        } else if (cfg != null && cfg.dimensionDefault != null && !cfg.dimensionDefault.isBlank()) {
-            plot.addProperty("dimension", cfg.dimensionDefault);
+        byte[] body = SubmitPayloadEncoder.batch(publishCode, plots);
+        boolean gzip = cfg.submitGzipBatch && !gzipUnsupported && SubmitPayloadEncoder.worthCompressing(body);
+        if (gzip) body = SubmitPayloadEncoder.gzip(body);
+
+        String batchKey = batchIdempotencyKey(idempotencyKeys);
+        return postJsonAsync(url, body, gzip, batchKey, BatchSubmitResult.class, RetryPolicy.SINGLE)
+                .thenApply(batch -> {
+                    if (gzip && batch != null && batch.httpStatus == 415) {
+                        gzipUnsupported = true;
+                        System.out.println("[SMD][HTTP] submitPlotBatch non accetta gzip (HTTP 415), invio non compresso.");
+                        return null;
+                    }
+                    return toBatchResults(count, batch);
+                });
+    }
+
+    private static List<SubmitResult> toBatchResults(int count, BatchSubmitResult batch) {
+        if (batch == null) {
+            return replicateError(count, errorResult("NETWORK_ERROR"));
+        }
+        int status = batch.httpStatus;
+        if (status == 404 || status == 405 || status == 501) {
+            markBatchUnsupported(status);
+            return null;
+        }
+        if (batch.results == null) {
+            // errore globale (rete, 429, 5xx, 403...): stesso esito per tutti i plot
+            if (status >= 200 && status < 300) {
+                markBatchUnsupported(status);
+                return null;
+            }
+            SubmitResult shared = new SubmitResult();
+            shared.success = false;
+            shared.error = batch.error != null ? batch.error : (status > 0 ? "HTTP_" + status : "NETWORK_ERROR");
+            shared.debug = batch.debug;
+            shared.httpStatus = status;
+            return replicateError(count, shared);
+        }
+        if (batch.results.size() != count) {
+            System.out.println("[SMD][HTTP] submitPlotBatch: " + batch.results.size()
+                    + " risultati per " + count + " plot, ripiego su invii singoli.");
+            markBatchUnsupported(status);
+            return null;
         }
-        if (info.proprietario != null) plot.addProperty("proprietario", info.proprietario);
-        if (info.ultimoAccessoIso != null) plot.addProperty("ultimo_accesso", info.ultimoAccessoIso);
 
-        JsonObject body = new JsonObject();
-        body.addProperty("publish_code", publishCode);
-        addOperatorInfo(body);
-        body.add("plot_data", plot);
+        List<SubmitResult> out = new ArrayList<>(count);
+        for (SubmitResult r : batch.results) {
+            if (r == null) {
+                r = errorResult("SUBMIT_FAILED");
+            }
+            if (r.httpStatus == 0) r.httpStatus = status;
+            out.add(acceptAlreadyProcessed(r));
+        }
+        return out;
+    }
 
-        SubmitResult result = postJsonWithRetryBlocking(url, body, SubmitResult.class, MAX_RETRIES);
-        if (result == null) {
-            return errorResult("NETWORK_ERROR");
+    /**
+     * Risposta a un reinvio con idempotency key già elaborata: il lavoro è fatto, quindi vale
+     * come successo "già presente" e non va ritentata. Conta solo il codice d'errore
+     * (ALREADY_PROCESSED_ERRORS, anche dentro un 409): un 409 con un altro codice è un
+     * conflitto vero e resta un errore.
+     */
+    private static SubmitResult acceptAlreadyProcessed(SubmitResult r) {
+        if (r.success) return r;
+        String error = r.error != null ? r.error.trim().toUpperCase(Locale.ROOT) : "";
+        if (ALREADY_PROCESSED_ERRORS.contains(error)) {
+            r.success = true;
+            r.alreadyMapped = true;
+            r.error = null;
         }
-        return result;
+        return r;
+    }
+
+    private static String batchIdempotencyKey(List<String> keys) {
+        if (keys == null || keys.isEmpty() || keys.contains(null)) return null;
+        return UUID.nameUUIDFromBytes(String.join(",", keys).getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
+    public static boolean isBatchSupported() {
+        return System.currentTimeMillis() >= batchUnsupportedUntilMs;
+    }
+
+    private static void markBatchUnsupported(int status) {
+        batchUnsupportedUntilMs = System.currentTimeMillis() + BATCH_UNSUPPORTED_RECHECK_MS;
+        System.out.println("[SMD][HTTP] submitPlotBatch non supportato (HTTP " + status + "), uso invii singoli.");
+    }
+
+    private static List<SubmitResult> replicateError(int count, SubmitResult template) {
+        List<SubmitResult> out = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            SubmitResult r = new SubmitResult();
+            r.success = false;
+            r.error = template.error;
+            r.debug = template.debug;
+            r.httpStatus = template.httpStatus;
+            out.add(r);
+        }
+        return out;
     }
 
     // ====== HTTP core ======
 
-    private static <T> void postJson(String url, JsonObject body, Class<T> cls, Consumer<T> cb) {
-        postJsonWithRetry(url, body, cls, cb, 1);
+    private static <T> Future<?> postJson(String url, JsonObject body, Class<T> cls, Consumer<T> cb) {
+        return postJsonWithRetry(url, body, cls, cb, RetryPolicy.SINGLE);
     }
 
     private static String getNormalizedEndpoint() {
@@ -319,145 +474,361 @@ public class SubmitPlotClient {
         }
     }
 
-    private static <T> void postJsonWithRetry(
+    /**
+     * POST asincrono con retry non bloccanti (il ritardo è un delayedExecutor, non uno sleep).
+     * Tentativi, scadenza e budget sono decisi da {@code policy}.
+     * Il future completa sempre con un oggetto risposta, anche in caso di errore di rete.
+     */
+    private static <T> CompletableFuture<T> postJsonAsync(
             String url,
-            JsonObject body,
+            byte[] body,
+            boolean gzip,
+            String idempotencyKey,
             Class<T> cls,
-            Consumer<T> cb
+            RetryPolicy policy
     ) {
-        postJsonWithRetry(url, body, cls, cb, MAX_RETRIES);
+        CompletableFuture<T> attempt;
+        try {
+            if (policy.maxAttempts() > 1) RetryPolicy.recordFirstAttempt();
+            HttpRequest req = buildJsonRequest(url, body, gzip, idempotencyKey);
+            attempt = attemptAsync(url, req, cls, policy, 1, System.currentTimeMillis());
+        } catch (Exception e) {
+            attempt = CompletableFuture.failedFuture(e);
+        }
+        return attempt.exceptionally(e -> {
+            Exception cause = unwrapException(e);
+            if (!(cause instanceof CircuitOpenException)) BREAKER.recordFailure(buildNetworkErrorMessage(cause));
+            logNetworkError(url, cause);
+            return createNetworkErrorResponse(cls, cause);
+        });
     }
 
-    private static <T> T postJsonWithRetryBlocking(
+    private static <T> CompletableFuture<T> attemptAsync(
             String url,
-            JsonObject body,
+            HttpRequest req,
             Class<T> cls,
-            int maxAttempts
+            RetryPolicy policy,
+            int attempt,
+            long firstAttemptAtMs
     ) {
+        if (!isBackendAvailable()) {
+            return CompletableFuture.failedFuture(new CircuitOpenException());
+        }
+        return BackendRateLimiter.acquireAsync(priorityFor(url))
+                .thenCompose(granted -> sendAsyncWithOptionalInsecure(req))
+                .thenCompose(resp -> {
+                    BackendRateLimiter.onResponse(resp);
+                    recordOutcome(resp.statusCode());
+                    int status = resp.statusCode();
+                    if (RetryPolicy.isRetryableStatus(status)) {
+                        RetryPolicy.Decision decision = policy.decide(attempt, firstAttemptAtMs);
+                        if (decision.retry) {
+                            Executor delayed = CompletableFuture.delayedExecutor(decision.delayMs, TimeUnit.MILLISECONDS);
+                            return CompletableFuture.supplyAsync(() -> attempt + 1, delayed)
+                                    .thenCompose(next -> attemptAsync(url, req, cls, policy, next, firstAttemptAtMs));
+                        }
+                    }
+                    return CompletableFuture.completedFuture(parseResponse(resp, cls));
+                });
+    }
+
+    /**
+     * La richiesta è immutabile e il body è un byte[] già pronto:
+     * ogni retry la rimanda così com'è, senza riserializzare nulla.
+     */
+    private static HttpRequest buildJsonRequest(String url, byte[] body, boolean gzip) {
+        return buildJsonRequest(url, body, gzip, null);
+    }
+
+    private static HttpRequest buildJsonRequest(String url, byte[] body, boolean gzip, String idempotencyKey) {
+        HttpRequest.Builder b = HttpRequest.newBuilder()
+                .uri(URI.create(url))
+                .timeout(REQ_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .header("Accept", "application/json")
+                .header("User-Agent", "MappaturaSMD/1.0");
+        if (gzip) b.header("Content-Encoding", "gzip");
+        if (idempotencyKey != null) b.header("Idempotency-Key", idempotencyKey);
+        return b.POST(HttpRequest.BodyPublishers.ofByteArray(body)).build();
+    }
+
+    private static <T> T parseResponse(HttpResponse<String> resp, Class<T> cls) {
+        int status = resp == null ? 0 : resp.statusCode();
+        String text = resp == null || resp.body() == null ? "" : resp.body();
+
+        T obj;
         try {
-            HttpResponse<String> resp = null;
-            String text = "";
-            int status = 0;
-            for (int attempt = 1; attempt <= Math.max(1, maxAttempts); attempt++) {
-                HttpRequest.Builder builder = HttpRequest.newBuilder()
-                        .uri(URI.create(url))
-                        .timeout(REQ_TIMEOUT)
-                        .header("Content-Type", "application/json")
-                        .header("Accept", "application/json")
-                        .header("User-Agent", "MappaturaSMD/1.0");
-                HttpRequest req = builder
-                        .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
-                        .build();
-
-                resp = sendWithOptionalInsecure(req);
-                status = resp.statusCode();
-                text = resp.body() == null ? "" : resp.body();
-
-                if (shouldRetry(status) && attempt < maxAttempts) {
-                    sleepForRetry(attempt);
-                    continue;
-                }
-                break;
-            }
+            obj = GSON.fromJson(text, cls);
+        } catch (Exception parse) {
+            obj = null;
+        }
 
-            T obj = null;
-            try {
-                obj = GSON.fromJson(text, cls);
-            } catch (Exception parse) {
-                obj = null;
-            }
+        if (obj == null) {
+            obj = createErrorResponse(cls, status);
+        }
 
-            if (obj == null) {
-                obj = createErrorResponse(cls, status);
-            }
+        setHttpStatusIfPresent(obj, status);
+        return obj;
+    }
 
-            setHttpStatusIfPresent(obj, status);
-            return obj;
-        } catch (IOException | InterruptedException e) {
-            if (e instanceof InterruptedException) {
-                Thread.currentThread().interrupt();
-            }
-            logNetworkError(url, e);
-            return createNetworkErrorResponse(cls, e);
-        } catch (Exception e) {
-            logNetworkError(url, e);
-            return createNetworkErrorResponse(cls, e);
+    private static Exception unwrapException(Throwable e) {
+        Throwable current = e;
+        while ((current instanceof CompletionException || current instanceof ExecutionException)
+                && current.getCause() != null) {
+            current = current.getCause();
         }
+        if (current instanceof Exception ex) return ex;
+        return new IOException(current);
     }
 
-    private static <T> void postJsonWithRetry(
+    private static <T> Future<?> postJsonWithRetry(
             String url,
             JsonObject body,
             Class<T> cls,
             Consumer<T> cb,
-            int maxAttempts
+            RetryPolicy policy
     ) {
-        // thread separato (non blocca render thread)
-        Thread worker = new Thread(() -> {
+        // esecutore condiviso e limitato (non blocca render thread)
+        Runnable call = () -> {
             try {
+                HttpRequest req = buildJsonRequest(url, body.toString().getBytes(StandardCharsets.UTF_8), false);
+                long firstAttemptAtMs = System.currentTimeMillis();
+                if (policy.maxAttempts() > 1) RetryPolicy.recordFirstAttempt();
                 HttpResponse<String> resp = null;
-                String text = "";
-                int status = 0;
-                for (int attempt = 1; attempt <= Math.max(1, maxAttempts); attempt++) {
-                    HttpRequest.Builder builder = HttpRequest.newBuilder()
-                            .uri(URI.create(url))
-                            .timeout(REQ_TIMEOUT)
-                            .header("Content-Type", "application/json")
-                            .header("Accept", "application/json")
-                            .header("User-Agent", "MappaturaSMD/1.0");
-                    HttpRequest req = builder
-                            .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
-                            .build();
-
+                for (int attempt = 1; ; attempt++) {
+                    if (!isBackendAvailable()) throw new CircuitOpenException();
+                    BackendRateLimiter.acquire(priorityFor(url));
                     resp = sendWithOptionalInsecure(req);
-                    status = resp.statusCode();
-                    text = resp.body() == null ? "" : resp.body();
-
-                    if (shouldRetry(status) && attempt < maxAttempts) {
-                        sleepForRetry(attempt);
-                        continue;
-                    }
-                    break;
+                    BackendRateLimiter.onResponse(resp);
+                    recordOutcome(resp.statusCode());
+                    if (!RetryPolicy.isRetryableStatus(resp.statusCode())) break;
+                    RetryPolicy.Decision decision = policy.decide(attempt, firstAttemptAtMs);
+                    if (!decision.retry) break;
+                    Thread.sleep(decision.delayMs);
                 }
 
-                T obj = null;
-                try {
-                    obj = GSON.fromJson(text, cls);
-                } catch (Exception parse) {
-                    // se parsing fallisce, ritorno null
-                    obj = null;
-                }
-
-                if (obj == null) {
-                    obj = createErrorResponse(cls, status);
-                }
-
-                // se è una delle nostre classi con httpStatus, setto via reflection safe
-                setHttpStatusIfPresent(obj, status);
+                // se parsing fallisce -> risposta d'errore con httpStatus
+                T obj = parseResponse(resp, cls);
 
                 if (cb != null) {
                     final T result = obj;
                     dispatchToMainThread(() -> cb.accept(result));
                 }
-            } catch (IOException | InterruptedException e) {
-                if (e instanceof InterruptedException) {
-                    Thread.currentThread().interrupt();
-                }
-                if (cb != null) {
-                    logNetworkError(url, e);
-                    T error = createNetworkErrorResponse(cls, e);
-                    dispatchToMainThread(() -> cb.accept(error));
-                }
+            } catch (InterruptedException e) {
+                // chiamata annullata: nessuna callback
+                Thread.currentThread().interrupt();
             } catch (Exception e) {
+                if (!(e instanceof CircuitOpenException)) BREAKER.recordFailure(buildNetworkErrorMessage(e));
                 if (cb != null) {
                     logNetworkError(url, e);
                     T error = createNetworkErrorResponse(cls, e);
                     dispatchToMainThread(() -> cb.accept(error));
                 }
             }
-        }, "SMD-HTTP");
-        worker.setDaemon(true);
-        worker.start();
+        };
+
+        try {
+            return BackendExecutor.submit(callName(url), call);
+        } catch (RejectedExecutionException e) {
+            RejectedExecutionException full = new RejectedExecutionException("coda HTTP piena");
+            logNetworkError(url, full);
+            if (cb != null) {
+                T error = createNetworkErrorResponse(cls, full);
+                dispatchToMainThread(() -> cb.accept(error));
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    // ====== Circuit breaker ======
+
+    /**
+     * true se il backend è utilizzabile (circuito CLOSED).
+     * Se il circuito è aperto e il timeout è scaduto, lancia una probe leggera in background.
+     */
+    public static boolean isBackendAvailable() {
+        if (BREAKER.allowRequest()) return true;
+        if (BREAKER.tryStartProbe()) probeAsync();
+        return false;
+    }
+
+    public static boolean isCircuitOpen() {
+        return !BREAKER.allowRequest();
+    }
+
+    public static String describeCircuit() {
+        return BREAKER.describe();
+    }
+
+    /** Probe: GET sul base URL. Qualsiasi risposta < 500 vuol dire backend raggiungibile. */
+    private static void probeAsync() {
+        String base = getNormalizedEndpoint();
+        if (base.isBlank()) {
+            BREAKER.onProbeResult(false, "ENDPOINT_MISSING");
+            return;
+        }
+        HttpRequest req;
+        try {
+            req = buildProbeRequest(base);
+        } catch (Exception e) {
+            BREAKER.onProbeResult(false, buildNetworkErrorMessage(e));
+            return;
+        }
+        sendAsyncWithOptionalInsecure(req).whenComplete((resp, ex) -> {
+            if (ex != null) {
+                BREAKER.onProbeResult(false, buildNetworkErrorMessage(unwrapException(ex)));
+            } else {
+                int status = resp.statusCode();
+                BREAKER.onProbeResult(status < 500, "probe HTTP " + status);
+            }
+        });
+    }
+
+    private static HttpRequest buildProbeRequest(String base) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(base))
+                .timeout(PROBE_TIMEOUT)
+                .header("User-Agent", "MappaturaSMD/1.0")
+                .GET()
+                .build();
+    }
+
+    // ====== Connessione: warm-up e keep-alive ======
+
+    /**
+     * Prepara in background tutto ciò che altrimenti verrebbe inizializzato alla prima
+     * chiamata (spesso dal tick loop, con scatto visibile al primo login):
+     * HttpClient e SSLContext (anche quello insicuro), adapter Gson dei modelli risposta,
+     * encoder dei payload e risoluzione DNS dell'host dell'endpoint.
+     * Da chiamare una volta in onInitializeClient: parte sul pool di BackendExecutor appena
+     * il config è caricato (l'endpoint da risolvere viene da lì).
+     */
+    public static void warmUpMachineryAsync() {
+        ConfigManager.whenLoaded().thenAccept(cfg -> {
+            try {
+                BackendExecutor.submit("warmUp", () -> warmUpMachinery(cfg));
+            } catch (RejectedExecutionException e) {
+                // non bloccante: la prima richiesta farà comunque il lavoro mancante
+                System.out.println("[SMD][HTTP] Warm-up saltato: coda piena");
+            }
+        });
+    }
+
+    private static void warmUpMachinery(AppConfig cfg) {
+        long startedAt = System.currentTimeMillis();
+        try {
+            // truststore di default + client sicuro e insicuro
+            SSLContext.getDefault();
+            getHttpClient();
+            getInsecureHttpClient();
+
+            // Gson costruisce gli adapter via reflection al primo uso di ogni classe
+            GSON.fromJson("{}", AuthResult.class);
+            GSON.fromJson("{}", SubmitResult.class);
+            GSON.fromJson("{\"results\":[]}", BatchSubmitResult.class);
+            GSON.fromJson("{}", SearchResult.class);
+            GSON.fromJson("{}", WhitelistRequestResult.class);
+            SubmitPayloadEncoder.encodePlot(new PlotInfo("0", 0, 0, null, null, null), cfg);
+
+            String base = getNormalizedEndpoint();
+            String host = base.isBlank() ? null : URI.create(base).getHost();
+            if (host != null) {
+                InetAddress.getAllByName(host);
+            }
+            System.out.println("[SMD][HTTP] Warm-up completato in " + (System.currentTimeMillis() - startedAt)
+                    + "ms" + (host != null ? " (" + host + " risolto)" : ""));
+        } catch (Exception e) {
+            // non bloccante: la prima richiesta farà comunque il lavoro mancante
+            System.out.println("[SMD][HTTP] Warm-up incompleto: " + e);
+        }
+    }
+
+    /**
+     * Apre subito la connessione verso il backend (DNS, TCP, TLS ed eventuale fallback insicuro)
+     * così il primo submit non paga l'handshake. Da chiamare all'avvio della mappatura.
+     */
+    public static void warmUpAsync() {
+        sendKeepAlive("warm-up");
+    }
+
+    /**
+     * Da chiamare a ogni tick mentre la mappatura è attiva: se non c'è traffico da
+     * KEEP_ALIVE_IDLE_MS manda una GET leggera per non far chiudere la connessione.
+     */
+    public static void keepAliveIfIdle() {
+        if (System.currentTimeMillis() - lastTrafficAtMs < KEEP_ALIVE_IDLE_MS) return;
+        sendKeepAlive("keep-alive");
+    }
+
+    private static void sendKeepAlive(String label) {
+        if (keepAliveInFlight) return;
+        // a circuito aperto ci pensa già la probe
+        if (!BREAKER.allowRequest()) return;
+        String base = getNormalizedEndpoint();
+        if (base.isBlank()) return;
+        HttpRequest req;
+        try {
+            req = buildProbeRequest(base);
+        } catch (Exception e) {
+            return;
+        }
+        keepAliveInFlight = true;
+        long startedAt = System.currentTimeMillis();
+        BackendRateLimiter.acquireAsync(BackendRateLimiter.Priority.BACKGROUND)
+                .thenCompose(granted -> sendAsyncWithOptionalInsecure(req))
+                .whenComplete((resp, ex) -> {
+                    keepAliveInFlight = false;
+                    if (ex != null) {
+                        System.out.println("[SMD][HTTP] " + label + " fallito: " + buildNetworkErrorMessage(unwrapException(ex)));
+                    } else if (!"keep-alive".equals(label)) {
+                        System.out.println("[SMD][HTTP] " + label + " OK (HTTP " + resp.statusCode() + ", "
+                                + resp.version() + ", " + (System.currentTimeMillis() - startedAt) + "ms)");
+                    }
+                });
+    }
+
+    /** Riga leggibile per /mappatura debug. */
+    public static String describeConnection() {
+        HttpClient.Version version = preferredVersion();
+        StringBuilder sb = new StringBuilder(version == HttpClient.Version.HTTP_2 ? "HTTP/2" : "HTTP/1.1");
+        long last = lastTrafficAtMs;
+        if (last > 0) {
+            sb.append(", ultimo traffico ").append((System.currentTimeMillis() - last) / 1000).append("s fa");
+        }
+        long now = System.currentTimeMillis();
+        INSECURE_HOSTS.forEach((host, until) -> {
+            if (until > now) sb.append(", TLS insicuro per ").append(host);
+        });
+        return sb.toString();
+    }
+
+    private static void recordOutcome(int status) {
+        if (status >= 500) {
+            BREAKER.recordFailure("HTTP " + status);
+        } else if (status != 429) {
+            // 429 riguarda il rate limit, non la salute del backend
+            BREAKER.recordSuccess();
+        }
+    }
+
+    private static final class CircuitOpenException extends IOException {
+        private CircuitOpenException() {
+            super("backend non raggiungibile (circuito aperto)");
+        }
+    }
+
+    /** Gli invii plot sono in background; auth, ricerche e whitelist sono interattive. */
+    private static BackendRateLimiter.Priority priorityFor(String url) {
+        String name = callName(url);
+        return name.startsWith("submitPlot")
+                ? BackendRateLimiter.Priority.BACKGROUND
+                : BackendRateLimiter.Priority.INTERACTIVE;
+    }
+
+    private static String callName(String url) {
+        if (url == null) return "http";
+        int slash = url.lastIndexOf('/');
+        return slash >= 0 && slash < url.length() - 1 ? url.substring(slash + 1) : url;
     }
 
     private static void setHttpStatusIfPresent(Object obj, int status) {
@@ -472,17 +843,98 @@ public class SubmitPlotClient {
 
     private static HttpResponse<String> sendWithOptionalInsecure(HttpRequest req)
             throws IOException, InterruptedException {
+        lastTrafficAtMs = System.currentTimeMillis();
+        String host = req.uri().getHost();
+        if (isKnownInsecureHost(host)) {
+            return getInsecureHttpClient().send(req, HttpResponse.BodyHandlers.ofString());
+        }
         try {
-            return HTTP.send(req, HttpResponse.BodyHandlers.ofString());
+            return getHttpClient().send(req, HttpResponse.BodyHandlers.ofString());
         } catch (IOException ex) {
             if (isSslHandshakeException(ex)) {
-                System.out.println("[SMD][HTTP] SSL validation failed, retrying with insecure client.");
+                rememberInsecureHost(host);
                 return getInsecureHttpClient().send(req, HttpResponse.BodyHandlers.ofString());
             }
             throw ex;
         }
     }
 
+    private static CompletableFuture<HttpResponse<String>> sendAsyncWithOptionalInsecure(HttpRequest req) {
+        lastTrafficAtMs = System.currentTimeMillis();
+        String host = req.uri().getHost();
+        if (isKnownInsecureHost(host)) {
+            try {
+                return getInsecureHttpClient().sendAsync(req, HttpResponse.BodyHandlers.ofString());
+            } catch (IOException io) {
+                return CompletableFuture.failedFuture(io);
+            }
+        }
+        return getHttpClient().sendAsync(req, HttpResponse.BodyHandlers.ofString())
+                .handle((resp, ex) -> {
+                    if (ex == null) return CompletableFuture.completedFuture(resp);
+                    if (isSslHandshakeException(ex)) {
+                        rememberInsecureHost(host);
+                        try {
+                            return getInsecureHttpClient().sendAsync(req, HttpResponse.BodyHandlers.ofString());
+                        } catch (IOException io) {
+                            return CompletableFuture.<HttpResponse<String>>failedFuture(io);
+                        }
+                    }
+                    return CompletableFuture.<HttpResponse<String>>failedFuture(ex);
+                })
+                .thenCompose(f -> f);
+    }
+
+    /**
+     * Decisione TLS ricordata per host: dopo un handshake fallito le richieste successive
+     * vanno direttamente sul client insicuro (un solo handshake invece di due).
+     * Scaduto INSECURE_HOST_RECHECK_MS si riprova la validazione normale.
+     */
+    private static boolean isKnownInsecureHost(String host) {
+        if (host == null) return false;
+        Long until = INSECURE_HOSTS.get(host);
+        if (until == null) return false;
+        if (System.currentTimeMillis() < until) return true;
+        INSECURE_HOSTS.remove(host, until);
+        return false;
+    }
+
+    private static void rememberInsecureHost(String host) {
+        if (host == null) return;
+        Long previous = INSECURE_HOSTS.put(host, System.currentTimeMillis() + INSECURE_HOST_RECHECK_MS);
+        if (previous == null) {
+            System.out.println("[SMD][HTTP] SSL validation failed for " + host + ", using insecure client for "
+                    + (INSECURE_HOST_RECHECK_MS / 60_000L) + " min.");
+        }
+    }
+
+    private static HttpClient.Version preferredVersion() {
+        AppConfig cfg = ConfigManager.get();
+        return cfg != null && cfg.httpUseHttp2 ? HttpClient.Version.HTTP_2 : HttpClient.Version.HTTP_1_1;
+    }
+
+    /** Client condiviso; viene ricreato solo se cambia httpUseHttp2. */
+    private static HttpClient getHttpClient() {
+        HttpClient.Version version = preferredVersion();
+        HttpClient client = HTTP;
+        if (client != null && client.version() == version) return client;
+        synchronized (SubmitPlotClient.class) {
+            if (HTTP == null || HTTP.version() != version) {
+                HTTP = newHttpClient(version, null);
+            }
+            return HTTP;
+        }
+    }
+
+    private static HttpClient newHttpClient(HttpClient.Version version, SSLContext sslContext) {
+        HttpClient.Builder b = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(10))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .version(version);
+        if (sslContext != null) b.sslContext(sslContext);
+        return b.build();
+    }
+
     private static boolean isSslHandshakeException(Throwable ex) {
         Throwable current = ex;
         while (current != null) {
@@ -495,11 +947,17 @@ public class SubmitPlotClient {
     }
 
     private static HttpClient getInsecureHttpClient() throws IOException {
-        if (INSECURE_HTTP != null) {
-            return INSECURE_HTTP;
+        HttpClient.Version version = preferredVersion();
+        HttpClient client = INSECURE_HTTP;
+        if (client != null && client.version() == version) {
+            return client;
         }
         synchronized (SubmitPlotClient.class) {
-            if (INSECURE_HTTP != null) {
+            if (INSECURE_HTTP != null && INSECURE_HTTP.version() == version) {
+                return INSECURE_HTTP;
+            }
+            if (INSECURE_SSL != null) {
+                INSECURE_HTTP = newHttpClient(version, INSECURE_SSL);
                 return INSECURE_HTTP;
             }
             try {
@@ -521,12 +979,8 @@ public class SubmitPlotClient {
                 };
                 SSLContext sslContext = SSLContext.getInstance("TLS");
                 sslContext.init(null, trustAll, new java.security.SecureRandom());
-                INSECURE_HTTP = HttpClient.newBuilder()
-                        .connectTimeout(Duration.ofSeconds(10))
-                        .followRedirects(HttpClient.Redirect.NORMAL)
-                        .version(HttpClient.Version.HTTP_1_1)
-                        .sslContext(sslContext)
-                        .build();
+                INSECURE_SSL = sslContext;
+                INSECURE_HTTP = newHttpClient(version, sslContext);
                 return INSECURE_HTTP;
             } catch (NoSuchAlgorithmException | KeyManagementException e) {
                 throw new IOException("Unable to initialize insecure SSL context", e);
@@ -568,6 +1022,15 @@ public class SubmitPlotClient {
             r.debug.addProperty("exception", detail);
             return (T) r;
         }
+        if (cls == BatchSubmitResult.class) {
+            BatchSubmitResult r = new BatchSubmitResult();
+            r.success = false;
+            r.error = "NETWORK_ERROR";
+            r.httpStatus = 0;
+            r.debug = new JsonObject();
+            r.debug.addProperty("exception", detail);
+            return (T) r;
+        }
         if (cls == SearchResult.class) {
             SearchResult r = new SearchResult();
             r.success = false;
@@ -607,6 +1070,13 @@ public class SubmitPlotClient {
             r.httpStatus = status;
             return (T) r;
         }
+        if (cls == BatchSubmitResult.class) {
+            BatchSubmitResult r = new BatchSubmitResult();
+            r.success = false;
+            r.error = error;
+            r.httpStatus = status;
+            return (T) r;
+        }
         if (cls == SearchResult.class) {
             SearchResult r = new SearchResult();
             r.success = false;
@@ -631,15 +1101,6 @@ public class SubmitPlotClient {
         return null;
     }
 
-    private static boolean shouldRetry(int status) {
-        return status == 429 || status >= 500;
-    }
-
-    private static void sleepForRetry(int attempt) throws InterruptedException {
-        long delay = RETRY_BASE_DELAY_MS * (1L << Math.max(0, attempt - 1));
-        Thread.sleep(delay);
-    }
-
     // ====== Small UX helpers (opzionale) ======
     public static void chatInfo(String msg) {
         MinecraftClient mc = MinecraftClient.getInstance();
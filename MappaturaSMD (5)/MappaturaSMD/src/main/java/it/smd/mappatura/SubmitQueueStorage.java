@@ -1,60 +1,583 @@
 package it.smd.mappatura;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import net.fabricmc.loader.api.FabricLoader;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * Persistenza della coda di invio come write-ahead log (mappaturasmd_pending.wal).
+ *
+ * - Ogni enqueue/ack è un record JSON su una riga, appeso in fondo al file:
+ *   costo O(1) per evento invece di riscrivere tutta la coda.
+ * - I record sono accodati in memoria e scritti dal thread "SMD-PendingWAL" a gruppi
+ *   (group commit: una write + un fsync ogni GROUP_COMMIT_MS al massimo).
+ * - Quando i record superano di molto i plot ancora pendenti il log viene compattato:
+ *   i record ancora vivi sono copiati dal WAL in un file temporaneo e rinominati sopra.
+ *   In memoria resta solo chiave → offset del record nel WAL, non il plot.
+ * - All'avvio il log viene riletto (replay) e il vecchio mappaturasmd_pending.json,
+ *   se presente, viene migrato nel WAL e cancellato.
+ * - Ogni plot pendente porta la sua idempotency key: dopo un crash il replay rimanda
+ *   la stessa chiave e il backend riconosce il lavoro già fatto.
+ *
+ * Spill (mappaturasmd_pending.spill): i task oltre la finestra in memoria della coda
+ * vengono parcheggiati qui (FIFO su disco, I/O sul thread SMD-IO) e riletti a blocchi
+ * quando la finestra si libera. È solo uno scarico di memoria: la fonte di verità resta il WAL,
+ * quindi il file viene azzerato a ogni avvio.
+ */
 public final class SubmitQueueStorage {
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
-    private static final String FILE_NAME = "mappaturasmd_pending.json";
+    private static final Gson GSON = new Gson();
+    private static final String LEGACY_FILE_NAME = "mappaturasmd_pending.json";
+    private static final String FILE_NAME = "mappaturasmd_pending.wal";
+    private static final String TMP_FILE_NAME = "mappaturasmd_pending.wal.tmp";
+    private static final String SPILL_FILE_NAME = "mappaturasmd_pending.spill";
+
+    private static final String OP_ENQUEUE = "E";
+    private static final String OP_ACK = "A";
+
+    private static final long GROUP_COMMIT_MS = 100L;
+    // compatta quando il log ha almeno questi record e più del doppio dei pendenti
+    private static final int COMPACT_MIN_RECORDS = 256;
+
+    private static final Object LOCK = new Object();
+    // plot pendenti: offset del loro record enqueue nel WAL, oppure -seq se è ancora nel buffer
+    private static final Map<String, Long> LIVE = new LinkedHashMap<>();
+    private static List<Line> buffer = new ArrayList<>();
+    private static long appendedSeq = 0L;
+    private static long writtenSeq = 0L;
+    private static int recordsInLog = 0;
+    // il writer parte solo dopo il replay: i record accodati prima restano nel buffer
+    private static boolean loaded = false;
+    private static Thread writer;
+
+    // accesso solo dal thread SMD-IO
+    private static long spillReadOffset = 0L;
 
     private SubmitQueueStorage() {}
 
-    public static synchronized List<PlotInfo> loadPending() {
+    /** Plot pendente ripristinato dal WAL o dallo spill, con la sua idempotency key e il flag update. */
+    public static final class Pending {
+        public final PlotInfo info;
+        public final boolean update;
+        public final String idempotencyKey;
+
+        private Pending(PlotInfo info, boolean update, String idempotencyKey) {
+            this.info = info;
+            this.update = update;
+            this.idempotencyKey = idempotencyKey;
+        }
+    }
+
+    /** Chiave nuova per un invio: stabile per tutta la vita del task, anche tra riavvii. */
+    public static String newIdempotencyKey() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Replay del WAL (più migrazione del vecchio JSON). Da chiamare una volta, fuori dal
+     * render thread: il file viene letto senza tenere il lock, quindi gli enqueue arrivati
+     * nel frattempo non aspettano il disco e vengono uniti allo stato ripristinato.
+     */
+    public static List<Pending> loadPending() {
+        Map<String, PendingPlot> restored = new LinkedHashMap<>();
+        int replayed = 0;
+        boolean migrated = false;
+        Path cfgDir = null;
         try {
-            Path cfgDir = FabricLoader.getInstance().getConfigDir();
-            Path file = cfgDir.resolve(FILE_NAME);
-            if (!Files.exists(file)) return Collections.emptyList();
-            String s = Files.readString(file, StandardCharsets.UTF_8);
-            Persisted persisted = GSON.fromJson(s, Persisted.class);
-            if (persisted == null || persisted.pending == null || persisted.pending.isEmpty()) {
-                return Collections.emptyList();
+            cfgDir = FabricLoader.getInstance().getConfigDir();
+            replayed = replay(cfgDir.resolve(FILE_NAME), restored);
+            migrated = migrateLegacy(cfgDir.resolve(LEGACY_FILE_NAME), restored);
+        } catch (Exception e) {
+            System.out.println("[SMD][WAL] Lettura coda pendente fallita: " + e.getMessage());
+        }
+
+        List<Pending> out = new ArrayList<>(restored.size());
+        for (PendingPlot pending : restored.values()) {
+            // record scritti prima delle idempotency key: la chiave nasce qui e va nel log compattato
+            if (pending.idempotencyKey == null || pending.idempotencyKey.isBlank()) {
+                pending.idempotencyKey = newIdempotencyKey();
             }
-            List<PlotInfo> out = new ArrayList<>();
-            for (PendingPlot pending : persisted.pending) {
-                if (pending == null || pending.plotId == null || pending.plotId.isBlank()) continue;
-                out.add(pending.toPlotInfo());
+            out.add(pending.toPending());
+        }
+
+        synchronized (LOCK) {
+            // LIVE contiene solo quanto accodato durante il replay: ha la precedenza
+            restored.keySet().removeAll(LIVE.keySet());
+            recordsInLog = replayed;
+            if (cfgDir != null && (replayed > 0 || migrated)) {
+                try {
+                    // riparte da un log compatto: niente record morti dalla sessione precedente
+                    compact(cfgDir, restored);
+                    if (migrated) Files.deleteIfExists(cfgDir.resolve(LEGACY_FILE_NAME));
+                } catch (Exception e) {
+                    System.out.println("[SMD][WAL] Compattazione iniziale fallita: " + e.getMessage());
+                    // i plot ripristinati devono comunque avere un offset: si riscrivono in coda al WAL
+                    for (Map.Entry<String, PendingPlot> entry : restored.entrySet()) {
+                        if (!LIVE.containsKey(entry.getKey())) appendEnqueueLocked(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+            loaded = true;
+            LOCK.notifyAll();
+        }
+
+        if (out.isEmpty()) return Collections.emptyList();
+        System.out.println("[SMD][WAL] Ripristinati " + out.size() + " invii pendenti.");
+        return out;
+    }
+
+    /** Registra un plot entrato in coda. Non fa I/O: il record parte col prossimo group commit. */
+    public static void appendEnqueue(String key, PlotInfo info, boolean update, String idempotencyKey) {
+        if (key == null || info == null) return;
+        String line = enqueueLine(key, PendingPlot.from(info, update, idempotencyKey));
+        synchronized (LOCK) {
+            LIVE.put(key, -append(key, line));
+        }
+    }
+
+    private static void appendEnqueueLocked(String key, PendingPlot plot) {
+        LIVE.put(key, -append(key, enqueueLine(key, plot)));
+    }
+
+    private static String enqueueLine(String key, PendingPlot plot) {
+        Record record = new Record();
+        record.op = OP_ENQUEUE;
+        record.key = key;
+        record.plot = plot;
+        return GSON.toJson(record);
+    }
+
+    /** Registra un plot inviato con successo (esce dalla coda). */
+    public static void appendAck(String key) {
+        if (key == null) return;
+        Record record = new Record();
+        record.op = OP_ACK;
+        record.key = key;
+        String line = GSON.toJson(record);
+        synchronized (LOCK) {
+            LIVE.remove(key);
+            append(null, line);
+        }
+    }
+
+    /** Attende che tutti i record accodati finora siano scritti su disco (max timeoutMs). */
+    public static boolean flush(long timeoutMs) {
+        long deadline = System.currentTimeMillis() + Math.max(0L, timeoutMs);
+        synchronized (LOCK) {
+            long target = appendedSeq;
+            LOCK.notifyAll();
+            while (writtenSeq < target) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) return false;
+                try {
+                    LOCK.wait(left);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Azzera il file di spill (avvio: i task verranno ri-parcheggiati dal replay del WAL). */
+    public static void resetSpill() {
+        DiskExecutor.run("spill", () -> {
+            spillReadOffset = 0L;
+            try {
+                Files.deleteIfExists(spillFile());
+            } catch (IOException e) {
+                System.out.println("[SMD][WAL] Reset spill fallito: " + e.getMessage());
+            }
+        });
+    }
+
+    /** Parcheggia un task su disco (asincrono, in ordine FIFO). */
+    public static void spill(PlotInfo info, boolean update, String idempotencyKey) {
+        if (info == null) return;
+        String line = GSON.toJson(PendingPlot.from(info, update, idempotencyKey)) + "\n";
+        DiskExecutor.run("spill", () -> {
+            try {
+                Path file = spillFile();
+                Files.createDirectories(file.getParent());
+                Files.writeString(file, line, StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                System.out.println("[SMD][WAL] Spill fallito (il plot resta nel WAL): " + e.getMessage());
+            }
+        });
+    }
+
+    /** Rilegge fino a max task parcheggiati, nell'ordine in cui sono stati scritti. */
+    public static CompletableFuture<List<Pending>> pollSpilled(int max) {
+        return DiskExecutor.supply("spill", () -> {
+            List<Pending> out = new ArrayList<>();
+            Path file = spillFile();
+            if (!Files.exists(file)) return out;
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                raf.seek(spillReadOffset);
+                String raw;
+                while (out.size() < max && (raw = raf.readLine()) != null) {
+                    // readLine legge byte come ISO-8859-1: si ricostruisce l'UTF-8 originale
+                    String line = new String(raw.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+                    if (line.isBlank()) continue;
+                    try {
+                        PendingPlot pending = GSON.fromJson(line, PendingPlot.class);
+                        if (pending != null && pending.isValid()) out.add(pending.toPending());
+                    } catch (Exception ignored) {}
+                }
+                spillReadOffset = raf.getFilePointer();
+                // tutto riletto: il file riparte da zero invece di crescere
+                if (spillReadOffset >= raf.length()) {
+                    raf.setLength(0L);
+                    spillReadOffset = 0L;
+                }
+            } catch (IOException e) {
+                System.out.println("[SMD][WAL] Lettura spill fallita: " + e.getMessage());
             }
             return out;
-        } catch (Exception ignored) {
-            return Collections.emptyList();
+        });
+    }
+
+    private static Path spillFile() {
+        return FabricLoader.getInstance().getConfigDir().resolve(SPILL_FILE_NAME);
+    }
+
+    public static int pendingCount() {
+        synchronized (LOCK) {
+            return LIVE.size();
         }
     }
 
-    public static synchronized void savePending(List<PlotInfo> pending) {
+    /** Accoda un record per il writer (chiamare con LOCK); restituisce il suo numero di sequenza. */
+    private static long append(String enqueueKey, String text) {
+        long seq = ++appendedSeq;
+        buffer.add(new Line(enqueueKey, seq, text));
+        if (writer == null) {
+            writer = new Thread(SubmitQueueStorage::runWriter, "SMD-PendingWAL");
+            writer.setDaemon(true);
+            writer.start();
+        }
+        LOCK.notifyAll();
+        return seq;
+    }
+
+    private static void runWriter() {
+        FileChannel channel = null;
+        while (true) {
+            List<Line> batch;
+            long batchSeq;
+            try {
+                synchronized (LOCK) {
+                    while (buffer.isEmpty() || !loaded) LOCK.wait();
+                }
+                // group commit: raccoglie anche i record che arrivano subito dopo
+                Thread.sleep(GROUP_COMMIT_MS);
+                synchronized (LOCK) {
+                    batch = buffer;
+                    buffer = new ArrayList<>();
+                    batchSeq = appendedSeq;
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                Path cfgDir = FabricLoader.getInstance().getConfigDir();
+                if (channel == null || !channel.isOpen()) {
+                    Files.createDirectories(cfgDir);
+                    channel = FileChannel.open(cfgDir.resolve(FILE_NAME),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+                long base = channel.size();
+                long[] offsets = new long[batch.size()];
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                for (int i = 0; i < batch.size(); i++) {
+                    offsets[i] = base + out.size();
+                    out.writeBytes(batch.get(i).text.getBytes(StandardCharsets.UTF_8));
+                    out.write('\n');
+                }
+                ByteBuffer bytes = ByteBuffer.wrap(out.toByteArray());
+                while (bytes.hasRemaining()) channel.write(bytes);
+                channel.force(false);
+
+                String[] liveKeys = null;
+                long[] liveOffsets = null;
+                synchronized (LOCK) {
+                    for (int i = 0; i < batch.size(); i++) {
+                        Line line = batch.get(i);
+                        // solo se nel frattempo il plot non è stato confermato o riaccodato
+                        if (line.enqueueKey != null && Long.valueOf(-line.seq).equals(LIVE.get(line.enqueueKey))) {
+                            LIVE.put(line.enqueueKey, offsets[i]);
+                        }
+                    }
+                    recordsInLog += batch.size();
+                    writtenSeq = batchSeq;
+                    LOCK.notifyAll();
+                    if (recordsInLog >= COMPACT_MIN_RECORDS && recordsInLog > LIVE.size() * 2) {
+                        // i record ancora nel buffer (offset negativo) verranno riscritti dopo
+                        List<Map.Entry<String, Long>> written = new ArrayList<>(LIVE.size());
+                        for (Map.Entry<String, Long> e : LIVE.entrySet()) {
+                            if (e.getValue() >= 0L) written.add(Map.entry(e.getKey(), e.getValue()));
+                        }
+                        written.sort(Map.Entry.comparingByValue());
+                        liveKeys = new String[written.size()];
+                        liveOffsets = new long[written.size()];
+                        for (int i = 0; i < liveKeys.length; i++) {
+                            liveKeys[i] = written.get(i).getKey();
+                            liveOffsets[i] = written.get(i).getValue();
+                        }
+                    }
+                }
+                if (liveKeys != null) {
+                    // solo questo thread scrive il WAL: la compattazione può girare fuori dal lock
+                    channel.close();
+                    channel = null;
+                    compactLive(cfgDir, liveKeys, liveOffsets);
+                }
+            } catch (IOException e) {
+                System.out.println("[SMD][WAL] Scrittura fallita: " + e.getMessage());
+                closeQuietly(channel);
+                channel = null;
+                // i record restano in testa al buffer e ripartono al prossimo giro
+                synchronized (LOCK) {
+                    batch.addAll(buffer);
+                    buffer = batch;
+                }
+                try {
+                    Thread.sleep(1_000L);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /** Compattazione all'avvio (chiamare con LOCK): un record enqueue per ogni plot ripristinato. */
+    private static void compact(Path cfgDir, Map<String, PendingPlot> restored) throws IOException {
+        Files.createDirectories(cfgDir);
+        Path tmp = cfgDir.resolve(TMP_FILE_NAME);
+        String[] keys = new String[restored.size()];
+        long[] offsets = new long[keys.length];
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            long written = 0L;
+            int i = 0;
+            for (Map.Entry<String, PendingPlot> e : restored.entrySet()) {
+                byte[] line = enqueueLine(e.getKey(), e.getValue()).getBytes(StandardCharsets.UTF_8);
+                keys[i] = e.getKey();
+                offsets[i++] = written;
+                out.write(line);
+                out.write('\n');
+                written += line.length + 1L;
+            }
+            out.flush();
+            channel.force(true);
+        }
+        replaceLog(cfgDir, tmp);
+        for (int i = 0; i < keys.length; i++) LIVE.put(keys[i], offsets[i]);
+        recordsInLog = keys.length;
+    }
+
+    /**
+     * Compattazione a regime (thread writer, senza LOCK): copia dal WAL i record agli offset
+     * indicati (in ordine crescente) e poi aggiorna gli offset in LIVE. I record ancora nel buffer
+     * verranno scritti dopo nel nuovo file; gli ack arrivati nel frattempo restano nel log e
+     * il replay, idempotente, li applica comunque.
+     */
+    private static void compactLive(Path cfgDir, String[] keys, long[] offsets) {
+        Path tmp = cfgDir.resolve(TMP_FILE_NAME);
+        long[] moved = new long[offsets.length];
+        try {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(cfgDir.resolve(FILE_NAME)));
+                 FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+                ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+                long pos = 0L;
+                long lineStart = 0L;
+                long written = 0L;
+                int next = 0;
+                int b;
+                while (next < offsets.length && (b = in.read()) != -1) {
+                    pos++;
+                    if (lineStart == offsets[next]) {
+                        if (b != '\n') {
+                            line.write(b);
+                            continue;
+                        }
+                        moved[next++] = written;
+                        line.write('\n');
+                        line.writeTo(out);
+                        written += line.size();
+                        line.reset();
+                    } else if (b != '\n') {
+                        continue;
+                    }
+                    lineStart = pos;
+                }
+                if (next < offsets.length) throw new IOException("record mancanti nel WAL (" + (offsets.length - next) + ")");
+                out.flush();
+                channel.force(true);
+            }
+            replaceLog(cfgDir, tmp);
+        } catch (IOException e) {
+            // il WAL originale resta intatto: si riprova alla prossima soglia
+            System.out.println("[SMD][WAL] Compattazione fallita: " + e.getMessage());
+            return;
+        }
+        synchronized (LOCK) {
+            for (int i = 0; i < keys.length; i++) {
+                if (Long.valueOf(offsets[i]).equals(LIVE.get(keys[i]))) LIVE.put(keys[i], moved[i]);
+            }
+            // da qui il log contiene i record copiati più quelli scritti dopo
+            recordsInLog = keys.length;
+        }
+    }
+
+    /** Sostituisce il WAL con il file compattato (rename atomico se possibile). */
+    private static void replaceLog(Path cfgDir, Path tmp) throws IOException {
+        Path file = cfgDir.resolve(FILE_NAME);
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Replay del WAL. Ritorna i record letti, righe illeggibili comprese: con almeno un record
+     * il chiamante compatta, quindi una riga rovinata non resta mai nel file.
+     */
+    private static int replay(Path file, Map<String, PendingPlot> into) throws IOException {
+        if (!Files.exists(file)) return 0;
+        trimTornTail(file);
+        int records = 0;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) continue;
+                records++;
+                Record record;
+                try {
+                    record = GSON.fromJson(line, Record.class);
+                } catch (Exception e) {
+                    System.out.println("[SMD][WAL] Record illeggibile ignorato: " + e.getMessage());
+                    continue;
+                }
+                if (record == null || record.key == null) continue;
+                if (OP_ENQUEUE.equals(record.op) && record.plot != null && record.plot.isValid()) {
+                    into.put(record.key, record.plot);
+                } else if (OP_ACK.equals(record.op)) {
+                    into.remove(record.key);
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Ogni record è scritto insieme al suo '\n': una riga finale senza '\n' è stata troncata da
+     * una chiusura improvvisa. Si taglia il file all'ultimo '\n', altrimenti il writer (in APPEND)
+     * incollerebbe il record successivo ai byte parziali.
+     */
+    private static void trimTornTail(Path file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            long length = raf.length();
+            long end = length;
+            byte[] chunk = new byte[4096];
+            while (end > 0) {
+                int n = (int) Math.min(chunk.length, end);
+                raf.seek(end - n);
+                raf.readFully(chunk, 0, n);
+                int i = n - 1;
+                while (i >= 0 && chunk[i] != '\n') i--;
+                if (i >= 0) {
+                    end = end - n + i + 1;
+                    break;
+                }
+                end -= n;
+            }
+            if (end < length) {
+                raf.setLength(end);
+                raf.getFD().sync();
+                System.out.println("[SMD][WAL] Record troncato rimosso dal WAL (" + (length - end) + " byte)");
+            }
+        }
+    }
+
+    private static boolean migrateLegacy(Path file, Map<String, PendingPlot> into) {
+        if (!Files.exists(file)) return false;
         try {
-            Path cfgDir = FabricLoader.getInstance().getConfigDir();
-            Files.createDirectories(cfgDir);
-            Persisted persisted = new Persisted();
-            if (pending != null && !pending.isEmpty()) {
-                persisted.pending = new ArrayList<>();
-                for (PlotInfo info : pending) {
-                    if (info != null) persisted.pending.add(PendingPlot.from(info));
+            String s = Files.readString(file, StandardCharsets.UTF_8);
+            LegacyPersisted persisted = GSON.fromJson(s, LegacyPersisted.class);
+            int count = 0;
+            if (persisted != null && persisted.pending != null) {
+                for (PendingPlot pending : persisted.pending) {
+                    if (pending == null || !pending.isValid()) continue;
+                    into.putIfAbsent(MappingController.buildSubmitKey(pending.toPlotInfo()), pending);
+                    count++;
                 }
             }
-            Path file = cfgDir.resolve(FILE_NAME);
-            Files.writeString(file, GSON.toJson(persisted), StandardCharsets.UTF_8);
-        } catch (Exception ignored) {}
+            System.out.println("[SMD][WAL] Migrati " + count + " invii pendenti da " + LEGACY_FILE_NAME);
+            return true;
+        } catch (Exception e) {
+            System.out.println("[SMD][WAL] Migrazione " + LEGACY_FILE_NAME + " fallita: " + e.getMessage());
+            return false;
+        }
     }
 
-    private static final class Persisted {
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    private static final class Line {
+        // chiave del plot se è un record enqueue, null per gli ack
+        private final String enqueueKey;
+        private final long seq;
+        private final String text;
+
+        private Line(String enqueueKey, long seq, String text) {
+            this.enqueueKey = enqueueKey;
+            this.seq = seq;
+            this.text = text;
+        }
+    }
+
+    private static final class Record {
+        private String op;
+        private String key;
+        private PendingPlot plot;
+    }
+
+    private static final class LegacyPersisted {
         private List<PendingPlot> pending = new ArrayList<>();
     }
 
@@ -66,8 +589,11 @@ public final class SubmitQueueStorage {
         private String proprietario;
         private String ultimoAccessoIso;
         private long requestId;
+        // aggiornamento di un plot già mappato: salvato qui, non ricalcolato dalla cache al ripristino
+        private boolean update;
+        private String idempotencyKey;
 
-        private static PendingPlot from(PlotInfo info) {
+        private static PendingPlot from(PlotInfo info, boolean update, String idempotencyKey) {
             PendingPlot pending = new PendingPlot();
             pending.plotId = info.plotId;
             pending.coordX = info.coordX;
@@ -76,9 +602,15 @@ public final class SubmitQueueStorage {
             pending.proprietario = info.proprietario;
             pending.ultimoAccessoIso = info.ultimoAccessoIso;
             pending.requestId = info.requestId;
+            pending.update = update;
+            pending.idempotencyKey = idempotencyKey;
             return pending;
         }
 
+        private boolean isValid() {
+            return plotId != null && !plotId.isBlank();
+        }
+
         private PlotInfo toPlotInfo() {
             return new PlotInfo(
                     plotId,
@@ -90,5 +622,9 @@ public final class SubmitQueueStorage {
                     requestId
             );
         }
+
+        private Pending toPending() {
+            return new Pending(toPlotInfo(), update, idempotencyKey);
+        }
     }
 }
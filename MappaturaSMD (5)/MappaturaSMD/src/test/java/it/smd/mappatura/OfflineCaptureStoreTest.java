@@ -0,0 +1,60 @@
+package it.smd.mappatura;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OfflineCaptureStoreTest {
+
+    @Test
+    void catturaSenzaCodiceVieneSincronizzataDopoAverloInserito() {
+        String server = "test-adozione.example:25565";
+        PlotInfo info = new PlotInfo("12;-4", 384, -128, "minecraft:overworld", "Mario", "2026-10-01T10:00:00Z");
+
+        // cattura offline prima di aver inserito il codice sessione
+        assertTrue(OfflineCaptureStore.capture(info, "", server));
+        assertTrue(OfflineCaptureStore.list("ABC123", server).isEmpty());
+
+        // codice inserito, poi /smd sync
+        List<OfflineCaptureStore.Captured> toSync = OfflineCaptureStore.listForSync("ABC123", server);
+        assertEquals(1, toSync.size());
+        assertEquals("12;-4", toSync.get(0).plotId);
+        assertEquals("ABC123", toSync.get(0).sessionCode);
+        assertTrue(OfflineCaptureStore.list("", server).isEmpty());
+
+        OfflineCaptureStore.markSynced(toSync);
+        assertTrue(OfflineCaptureStore.listForSync("ABC123", server).isEmpty());
+    }
+
+    @Test
+    void adozioneNonSovrascriveUnaCatturaPiuRecenteDellaSessione() {
+        String server = "test-collisione.example:25565";
+        PlotInfo vecchio = new PlotInfo("3;7", 96, 224, "minecraft:overworld", "Luigi", "2026-09-01T10:00:00Z");
+        PlotInfo nuovo = new PlotInfo("3;7", 96, 224, "minecraft:overworld", "Anna", "2026-10-01T10:00:00Z");
+
+        assertTrue(OfflineCaptureStore.capture(vecchio, "", server));
+        assertTrue(OfflineCaptureStore.capture(nuovo, "XYZ789", server));
+
+        List<OfflineCaptureStore.Captured> toSync = OfflineCaptureStore.listForSync("XYZ789", server);
+        assertEquals(1, toSync.size());
+        assertEquals("Anna", toSync.get(0).proprietario);
+        assertTrue(OfflineCaptureStore.list("", server).isEmpty());
+
+        OfflineCaptureStore.markSynced(toSync);
+    }
+
+    @Test
+    void catturaSenzaCodiceDiUnAltroServerResta() {
+        String server = "test-altro.example:25565";
+        PlotInfo info = new PlotInfo("0;0", 0, 0, "minecraft:overworld", "Sara", "2026-10-02T10:00:00Z");
+
+        assertTrue(OfflineCaptureStore.capture(info, "", server));
+        assertTrue(OfflineCaptureStore.listForSync("ABC123", "test-diverso.example:25565").isEmpty());
+        assertEquals(1, OfflineCaptureStore.list("", server).size());
+
+        OfflineCaptureStore.markSynced(OfflineCaptureStore.listForSync("ABC123", server));
+    }
+}